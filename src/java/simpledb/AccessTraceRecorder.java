@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the sequence of pages requested from a BufferPool to a file, so
+ * replacement policies can later be compared on a real workload with
+ * {@link PolicyBenchmark}. Each access is stored as two ints, the table id
+ * and the page number.
+ *
+ * @see BufferPool#startTrace
+ * @Threadsafe
+ */
+public class AccessTraceRecorder {
+
+    private final DataOutputStream out;
+    private long accesses;
+    private IOException failure;
+
+    /**
+     * Creates a recorder writing to the specified file, which is truncated.
+     */
+    public AccessTraceRecorder(File f) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+    }
+
+    /**
+     * Appends one access to the trace. Write errors are remembered and
+     * reported by close() rather than failing the page request.
+     */
+    public synchronized void record(PageId pid) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.pageNumber());
+            accesses++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /** @return the number of accesses recorded so far */
+    public synchronized long getAccessCount() {
+        return accesses;
+    }
+
+    /**
+     * Flushes and closes the trace file.
+     *
+     * @throws IOException if writing the trace failed at any point
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Reads back a trace written by a recorder. */
+    public static List<PageId> readTrace(File f) throws IOException {
+        List<PageId> trace = new ArrayList<PageId>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        try {
+            while (true) {
+                int tableId;
+                try {
+                    tableId = in.readInt();
+                } catch (EOFException e) {
+                    return trace;
+                }
+                trace.add(new HeapPageId(tableId, in.readInt()));
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -2,9 +2,26 @@ package simpledb;
 
 import java.io.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -28,9 +45,147 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private int numPages = DEFAULT_PAGES;
+    /** Whether new buffer pools keep page images off-heap by default;
+    set with -Dsimpledb.BufferPool.offHeap=true */
+    private static final boolean OFF_HEAP_DEFAULT = Boolean.getBoolean("simpledb.BufferPool.offHeap");
 
-    private Map<PageId, Page> pageMap;
+    /** Replacement policy of new buffer pools, see ReplacementPolicy.create();
+    set with -Dsimpledb.BufferPool.policy=lru|clock|lru-k|2q */
+    private static final String POLICY_DEFAULT =
+            System.getProperty("simpledb.BufferPool.policy", ReplacementPolicy.TWO_Q);
+
+    /** Largest number of frames a sequential scan's ring may use */
+    private static final int MAX_RING_PAGES = 32;
+
+    /** Number of background threads reading pages for prefetchPage() */
+    private static final int IO_THREADS = 4;
+
+    /** Upper bound on the number of consecutive pages read together */
+    private static final int MAX_BATCH_PAGES = 64;
+
+    /** Background threads shared by all buffer pools, created on first use */
+    private static Executor ioExecutor;
+
+    /** Orders page ids by table, then by page number */
+    static final Comparator<PageId> FILE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId()) {
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            }
+            return Integer.compare(a.pageNumber(), b.pageNumber());
+        }
+    };
+
+    /**
+     * Size of the pool in pages of the default page size; may be below
+     * frames.length while the pool shrinks
+     */
+    private volatile int numPages = DEFAULT_PAGES;
+
+    /**
+     * Pages of the default size taken up by cached pages, at most numPages
+     * unless the pool is shrinking. A page of a file with larger pages
+     * counts as several (protected by this).
+     */
+    private int usedPages;
+
+    /**
+     * Room the warm-start loader has set aside for pages it is reading, in
+     * pages of the default size (protected by this)
+     */
+    private int reservedPages;
+
+    /** Room set aside for one run of pages read by the warm-start loader */
+    private static class Reservation {
+        int pages;
+    }
+
+    /**
+     * A slot of the buffer pool holding one cached page. Frames read by a
+     * sequential scan belong to that scan's ring until the ring recycles
+     * them or hands them over to the shared pool; all other frames are
+     * managed by the replacement policy.
+     */
+    private static class Frame {
+        final int slot;
+        volatile Page page;
+
+        /**
+         * The ring this frame belongs to, or null if the policy manages it.
+         * Written while holding the BufferPool monitor; volatile because the
+         * hit path reads it without the monitor.
+         */
+        volatile BufferRing owner;
+
+        /** Set when a ring frame is read by anyone but its ring's scan */
+        volatile boolean referenced;
+
+        /** Number of pages of the default size the page counts for */
+        final int weight;
+
+        /**
+         * Number of outstanding pins, or -1 once the frame has been claimed
+         * for eviction; a claimed frame can never be pinned again.
+         */
+        final AtomicInteger pins = new AtomicInteger();
+
+        Frame(int slot, Page page, BufferRing owner, int weight) {
+            this.slot = slot;
+            this.page = page;
+            this.owner = owner;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Map from the id of every cached page to the frame holding it. Lookups
+     * take no lock; frames are only added and removed while holding the
+     * BufferPool monitor.
+     */
+    private final ConcurrentHashMap<PageId, Frame> pageMap;
+
+    /**
+     * Reads in progress. The first thread to miss on a page registers a
+     * future here and reads the page; threads missing on the same page
+     * meanwhile wait on that future instead of reading it again.
+     */
+    private final ConcurrentHashMap<PageId, CompletableFuture<Frame>> pendingLoads;
+
+    /** Frames by slot, null for free slots (protected by this) */
+    private Frame[] frames;
+
+    /**
+     * Indexes of the unused slots of frames, lowest first, so that the
+     * slots beyond numPages drain while the pool shrinks (protected by this)
+     */
+    private final PriorityQueue<Integer> freeSlots;
+
+    /** Chooses which page to evict among the frames not owned by a ring */
+    private final ReplacementPolicy policy;
+
+    /** Records the pages requested through getPage(), or null */
+    private volatile AccessTraceRecorder recorder;
+
+    /** Off-heap storage for page images, one slot per frame; null if pages stay on the heap */
+    private final PageArena arena;
+
+    /** Pins a transaction holds on one page */
+    private static class Pin {
+        Frame frame;
+        int count;
+    }
+
+    /** Pins held by each running transaction (each map protected by itself) */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Pin>> pinsBy;
+
+    /** Hit, miss, eviction and write counters */
+    private final BufferPoolStats stats = new BufferPoolStats();
+
+    /** Page-level locks of running transactions */
+    private final LockManager lockManager;
+
+    /** Pages dirtied by each running transaction through insertTuple and deleteTuple */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedBy;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -38,11 +193,57 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, OFF_HEAP_DEFAULT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param offHeap if true, the images of cached heap pages are kept in
+     *   direct memory, one page-sized slot per frame, rather than on the heap
+     */
+    public BufferPool(int numPages, boolean offHeap) {
+        this(numPages, offHeap, null);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages. The pool is
+     * sized in pages of the default page size: a page of a file with larger
+     * pages takes the room of as many default-size pages as it spans.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param offHeap if true, the images of cached heap pages are kept in
+     *   direct memory, one slot of the default page size per frame, rather
+     *   than on the heap; pages of files with larger pages stay on the heap
+     * @param policy the replacement policy, or null for the default one
+     */
+    public BufferPool(int numPages, boolean offHeap, ReplacementPolicy policy) {
         // some code goes here
         this.numPages = numPages;
-        pageMap = new HashMap();
+        this.arena = offHeap ? new PageArena(getPageSize(), numPages) : null;
+        pageMap = new ConcurrentHashMap<PageId, Frame>();
+        pendingLoads = new ConcurrentHashMap<PageId, CompletableFuture<Frame>>();
+        frames = new Frame[numPages];
+        freeSlots = new PriorityQueue<Integer>(Math.max(1, numPages));
+        for (int i = 0; i < numPages; i++) {
+            freeSlots.add(i);
+        }
+        this.policy = policy != null ? policy : ReplacementPolicy.create(POLICY_DEFAULT, numPages);
+        lockManager = new LockManager();
+        pinsBy = new ConcurrentHashMap<TransactionId, Map<PageId, Pin>>();
+        dirtiedBy = new ConcurrentHashMap<TransactionId, Set<PageId>>();
     }
     
+    /** @return the maximum number of pages of the default size in this buffer pool */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the default page size, used by files that do not choose their
+     *   own; see {@link DbFile#getPageSize()}
+     */
     public static int getPageSize() {
       return pageSize;
     }
@@ -75,31 +276,806 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if(pageMap.containsKey(pid)){
-            return pageMap.get(pid);
-        } else {
-            if(pageMap.size() < numPages) {
-                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pageMap.put(pid, page);
-                return page;
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a sequential scan. Behaves
+     * like {@link #getPage(TransactionId, PageId, Permissions)}, except that
+     * a page that has to be read in replaces the oldest page of the given
+     * ring once the ring is full, rather than a page chosen by the
+     * replacement policy.
+     *
+     * @param ring the scan's ring, see {@link #getScanRing}; may be null
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        return fetch(tid, pid, perm, ring, false);
+    }
+
+    /**
+     * Retrieve the specified page like
+     * {@link #getPage(TransactionId, PageId, Permissions, BufferRing)} and
+     * pin it, so it is not evicted while the caller works on it, e.g. while
+     * an iterator walks its tuples. Every pinPage() should be matched by one
+     * {@link #unpinPage}; releasePage() and transactionComplete() drop any
+     * pins the transaction still holds.
+     *
+     * @param ring the scan's ring, see {@link #getScanRing}; may be null
+     */
+    public  Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        return fetch(tid, pid, perm, ring, true);
+    }
+
+    private Page fetch(TransactionId tid, PageId pid, Permissions perm, BufferRing ring, boolean pin)
+        throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            lockManager.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        }
+        AccessTraceRecorder trace = recorder;
+        if (trace != null) {
+            trace.record(pid);
+        }
+        while (true) {
+            Frame frame = pageMap.get(pid);
+            if (frame == null) {
+                long start = System.nanoTime();
+                frame = loadFrame(pid, ring);
+                stats.recordMiss(System.nanoTime() - start);
             } else {
-                throw new DbException("Buffer pool is full");
+                recordHit(pid, frame, ring);
+            }
+            // the frame may have been evicted since we found it; look again
+            if (!pin || tid == null || pin(tid, pid, frame)) {
+                return frame.page;
+            }
+        }
+    }
+
+    private void recordHit(PageId pid, Frame frame, BufferRing ring) {
+        stats.recordHit();
+        BufferRing owner = frame.owner;
+        if (owner == null) {
+            policy.onHit(pid);
+        } else if (owner != ring && !frame.referenced) {
+            // avoid writing the shared cache line when the bit is already set
+            frame.referenced = true;
+        }
+    }
+
+    /**
+     * Retrieve the specified page like
+     * {@link #getPage(TransactionId, PageId, Permissions)}, but without
+     * waiting for I/O. A page in the pool comes back in a completed future;
+     * a page that has to be read is read with its file's readPageAsync(),
+     * so a few threads can keep reads of many independent pages in flight,
+     * e.g. for index probes or the inner side of a join. The lock is still
+     * acquired before this method returns and may block.
+     *
+     * @return a future completed with the page, or exceptionally
+     *         with a DbException if the page cannot be read
+     */
+    public CompletableFuture<Page> getPageAsync(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            lockManager.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        }
+        AccessTraceRecorder trace = recorder;
+        if (trace != null) {
+            trace.record(pid);
+        }
+        Frame frame = pageMap.get(pid);
+        if (frame != null) {
+            recordHit(pid, frame, null);
+            return CompletableFuture.completedFuture(frame.page);
+        }
+        final long start = System.nanoTime();
+        return loadFrameAsync(pid).thenApply(new Function<Frame, Page>() {
+            public Page apply(Frame loaded) {
+                stats.recordMiss(System.nanoTime() - start);
+                return loaded.page;
+            }
+        });
+    }
+
+    /**
+     * Like loadFrame(), but returns at once. The page is installed on an
+     * I/O thread once its read completes, which keeps the threads completing
+     * reads free of evictions.
+     */
+    private CompletableFuture<Frame> loadFrameAsync(final PageId pid) {
+        final CompletableFuture<Frame> load = new CompletableFuture<Frame>();
+        CompletableFuture<Frame> inFlight = pendingLoads.putIfAbsent(pid, load);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        CompletableFuture<Page> read;
+        try {
+            read = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPageAsync(pid);
+        } catch (RuntimeException e) {
+            read = new CompletableFuture<Page>();
+            read.completeExceptionally(e);
+        }
+        read.whenCompleteAsync(new BiConsumer<Page, Throwable>() {
+            public void accept(Page page, Throwable failure) {
+                if (failure != null) {
+                    pendingLoads.remove(pid, load);
+                    load.completeExceptionally(readFailure(pid, failure));
+                    return;
+                }
+                try {
+                    completeLoad(pid, load, null, null, page);
+                } catch (DbException e) {
+                    // completeLoad() has failed the load
+                } catch (RuntimeException e) {
+                    // completeLoad() has failed the load
+                }
+            }
+        }, ioExecutor());
+        return load;
+    }
+
+    private static DbException readFailure(PageId pid, Throwable failure) {
+        Throwable cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedDbException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof DbException) {
+            return (DbException) cause;
+        }
+        DbException e = new DbException("unable to read page " + pid.pageNumber()
+                + " of table " + pid.getTableId() + ": " + cause);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Pins a frame on behalf of a transaction, so it is not evicted until
+     * the transaction unpins it or completes.
+     *
+     * @return false if the frame has already been claimed for eviction
+     */
+    private boolean pin(TransactionId tid, PageId pid, Frame frame) {
+        while (true) {
+            int pins = frame.pins.get();
+            if (pins < 0) {
+                return false;
+            }
+            if (frame.pins.compareAndSet(pins, pins + 1)) {
+                break;
+            }
+        }
+        Map<PageId, Pin> mine = pinsBy.get(tid);
+        if (mine == null) {
+            mine = new HashMap<PageId, Pin>();
+            Map<PageId, Pin> raced = pinsBy.putIfAbsent(tid, mine);
+            if (raced != null) {
+                mine = raced;
+            }
+        }
+        synchronized (mine) {
+            Pin pin = mine.get(pid);
+            if (pin == null) {
+                pin = new Pin();
+                mine.put(pid, pin);
+            }
+            if (pin.frame != frame) {
+                // pins on a frame that has been discarded since are void
+                pin.frame = frame;
+                pin.count = 0;
+            }
+            pin.count++;
+        }
+        return true;
+    }
+
+    /** Drops one pin from a frame unless it has been claimed for eviction. */
+    private static void unpin(Frame frame, int count) {
+        while (true) {
+            int pins = frame.pins.get();
+            if (pins <= 0) {
+                return;
+            }
+            if (frame.pins.compareAndSet(pins, Math.max(0, pins - count))) {
+                return;
             }
         }
     }
 
+    /**
+     * Tells the buffer pool that a transaction no longer uses a page it got
+     * from pinPage(); pinned pages are never evicted. Unpinning a page the
+     * transaction has not pinned does nothing. Unlike releasePage(), this
+     * keeps the transaction's lock on the page.
+     *
+     * @param tid the transaction that got the page
+     * @param pid the page that is no longer used
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Pin> mine = pinsBy.get(tid);
+        if (mine == null) {
+            return;
+        }
+        Frame frame;
+        synchronized (mine) {
+            Pin pin = mine.get(pid);
+            if (pin == null) {
+                return;
+            }
+            frame = pin.frame;
+            if (--pin.count == 0) {
+                mine.remove(pid);
+            }
+        }
+        unpin(frame, 1);
+    }
+
+    /** Drops the pins a transaction holds on one page, or on all pages if pid is null. */
+    private void unpinAll(TransactionId tid, PageId pid) {
+        Map<PageId, Pin> mine = pid == null ? pinsBy.remove(tid) : pinsBy.get(tid);
+        if (mine == null) {
+            return;
+        }
+        List<Pin> dropped = new ArrayList<Pin>();
+        synchronized (mine) {
+            if (pid == null) {
+                dropped.addAll(mine.values());
+            } else if (mine.containsKey(pid)) {
+                dropped.add(mine.remove(pid));
+            }
+        }
+        for (Pin pin : dropped) {
+            unpin(pin.frame, pin.count);
+        }
+    }
+
+    /** @return the number of pins on the specified page, 0 if it is not cached */
+    int getPinCount(PageId pid) {
+        Frame frame = pageMap.get(pid);
+        return frame == null ? 0 : Math.max(0, frame.pins.get());
+    }
+
+    /**
+     * Returns a ring for a sequential scan of a table with the given number
+     * of pages, or null if the scan should use the shared pool. Only tables
+     * that do not fit in the pool get a ring; scanning them could not leave
+     * them cached anyway.
+     */
+    public BufferRing getScanRing(int tablePages) {
+        if (tablePages <= numPages) {
+            return null;
+        }
+        return new BufferRing(Math.max(1, Math.min(MAX_RING_PAGES, numPages / 8)));
+    }
+
+    /**
+     * Hands the frames of a finished scan's ring over to the replacement
+     * policy, which will treat them as pages that were read once.
+     */
+    public synchronized void releaseRing(BufferRing ring) {
+        ring.released = true;
+        PageId pid;
+        while ((pid = ring.poll()) != null) {
+            Frame frame = pageMap.get(pid);
+            if (frame != null && frame.owner == ring) {
+                adopt(pid, frame);
+            }
+        }
+    }
+
+    /**
+     * Starts reading the specified page on a background thread unless it is
+     * already cached or being read. A later getPage() for the page finds it
+     * in the pool or waits for this read rather than issuing its own.
+     * Prefetching takes no locks; errors are ignored and left for the
+     * eventual getPage() to report.
+     *
+     * @param pid the page to read
+     * @param ring the ring of the scan the page is read for; may be null
+     */
+    public void prefetchPage(final PageId pid, final BufferRing ring) {
+        if (pageMap.containsKey(pid)) {
+            return;
+        }
+        final CompletableFuture<Frame> load = new CompletableFuture<Frame>();
+        if (pendingLoads.putIfAbsent(pid, load) != null) {
+            return;
+        }
+        ioExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    completeLoad(pid, load, ring, null, null);
+                } catch (DbException e) {
+                    Debug.log("prefetch of page %d of table %d failed: %s",
+                            pid.pageNumber(), pid.getTableId(), e.getMessage());
+                } catch (RuntimeException e) {
+                    Debug.log("prefetch of page %d of table %d failed: %s",
+                            pid.pageNumber(), pid.getTableId(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts reading consecutive pages of a table on background threads,
+     * like prefetchPage(), but reading each run of them that is neither
+     * cached nor being read with a single read when the file is a HeapFile.
+     *
+     * @param tableId the table to read from
+     * @param firstPage the number of the first page to read
+     * @param count the number of pages to read
+     * @param ring the ring of the scan the pages are read for; may be null
+     */
+    public void prefetchPages(final int tableId, int firstPage, int count, final BufferRing ring) {
+        int end = firstPage + count;
+        int pageNo = firstPage;
+        while (pageNo < end) {
+            final List<CompletableFuture<Frame>> loads = new ArrayList<CompletableFuture<Frame>>();
+            final int runStart = registerRun(tableId, pageNo, end, MAX_BATCH_PAGES, loads);
+            if (loads.isEmpty()) {
+                return;
+            }
+            pageNo = runStart + loads.size();
+            ioExecutor().execute(new Runnable() {
+                public void run() {
+                    readRun(tableId, runStart, loads, ring, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers loads in pendingLoads for the first run of consecutive pages
+     * between from and end that are neither cached nor being read, at most
+     * max pages long.
+     *
+     * @param loads receives the registered loads, in page order
+     * @return the number of the first page of the run
+     */
+    private int registerRun(int tableId, int from, int end, int max,
+            List<CompletableFuture<Frame>> loads) {
+        int runStart = end;
+        for (int pageNo = from; pageNo < end && loads.size() < max; pageNo++) {
+            PageId pid = new HeapPageId(tableId, pageNo);
+            CompletableFuture<Frame> load = new CompletableFuture<Frame>();
+            if (pageMap.containsKey(pid) || pendingLoads.putIfAbsent(pid, load) != null) {
+                if (loads.isEmpty()) {
+                    continue;
+                }
+                break;
+            }
+            if (loads.isEmpty()) {
+                runStart = pageNo;
+            }
+            loads.add(load);
+        }
+        return runStart;
+    }
+
+    /**
+     * Reads the run of pages registered by registerRun() and completes their
+     * loads. If the run cannot be read at once, each page is read on its
+     * own; pages that still fail are logged and left for getPage() to report.
+     *
+     * @param room room set aside for the pages, or null to evict as needed
+     * @return the number of pages installed
+     */
+    private int readRun(int tableId, int first, List<CompletableFuture<Frame>> loads,
+            BufferRing ring, Reservation room) {
+        List<Page> pages = null;
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (file instanceof HeapFile && loads.size() > 1) {
+                pages = ((HeapFile) file).readPages(first, loads.size());
+            }
+        } catch (IOException e) {
+            Debug.log("read of %d pages of table %d failed: %s", loads.size(), tableId, e.getMessage());
+        } catch (RuntimeException e) {
+            Debug.log("read of %d pages of table %d failed: %s", loads.size(), tableId, e);
+        }
+        int installed = 0;
+        for (int i = 0; i < loads.size(); i++) {
+            PageId pid = new HeapPageId(tableId, first + i);
+            try {
+                completeLoad(pid, loads.get(i), ring, room, pages == null ? null : pages.get(i));
+                installed++;
+            } catch (DbException e) {
+                Debug.log("read of page %d of table %d failed: %s",
+                        pid.pageNumber(), tableId, e.getMessage());
+            } catch (RuntimeException e) {
+                Debug.log("read of page %d of table %d failed: %s", pid.pageNumber(), tableId, e);
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Writes the ids of the pages currently in the pool to a file, in the
+     * compact sorted form described in {@link WarmStart}.
+     */
+    public void saveResidentPages(File f) throws IOException {
+        WarmStart.save(new ArrayList<PageId>(pageMap.keySet()), f);
+    }
+
+    /**
+     * Reads back, on a background thread, the pages listed in a file written
+     * by saveResidentPages(), table by table in page order, each run of
+     * consecutive pages with as few reads as possible. Queries keep running
+     * meanwhile; a query that needs a page the loader is reading waits for
+     * that read instead of issuing its own. Before each read the loader
+     * sets aside free room for the pages it reads and stops once the pool
+     * has none left, so it never evicts pages queries have read. Pages of tables that are not
+     * in the catalog, or beyond the end of their file, are skipped.
+     *
+     * @return a future completed with the number of pages read
+     */
+    public CompletableFuture<Integer> warmUp(final File f) {
+        final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+        Thread loader = new Thread("simpledb-warm-start") {
+            public void run() {
+                try {
+                    done.complete(loadPages(WarmStart.load(f)));
+                } catch (IOException e) {
+                    Debug.log("warm start from %s failed: %s", f, e.getMessage());
+                    done.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    Debug.log("warm start from %s failed: %s", f, e);
+                    done.completeExceptionally(e);
+                }
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+        return done;
+    }
+
+    /**
+     * Keeps the set of resident pages in a file across restarts: reads back
+     * the pages saved by a previous run, if the file exists, then saves the
+     * set every saveIntervalMillis and when the JVM shuts down. Call this
+     * once the catalog is loaded.
+     *
+     * @param saveIntervalMillis time between two saves, 0 to only save at shutdown
+     * @return a future completed with the number of pages read back
+     */
+    public CompletableFuture<Integer> enableWarmStart(File f, long saveIntervalMillis) {
+        WarmStart.saveInBackground(this, f, saveIntervalMillis);
+        if (f.exists()) {
+            return warmUp(f);
+        }
+        return CompletableFuture.completedFuture(0);
+    }
+
+    private int loadPages(Map<Integer, List<int[]>> runs) {
+        Catalog catalog = Database.getCatalog();
+        int loaded = 0;
+        for (Map.Entry<Integer, List<int[]>> table : runs.entrySet()) {
+            int tableId = table.getKey();
+            if (catalog.getTableName(tableId) == null) {
+                continue;
+            }
+            DbFile file = catalog.getDatabaseFile(tableId);
+            int filePages = file instanceof HeapFile ? ((HeapFile) file).numPages() : Integer.MAX_VALUE;
+            int weight = weightOf(file.getPageSize());
+            for (int[] run : table.getValue()) {
+                int end = Math.min(run[0] + run[1], filePages);
+                int pageNo = run[0];
+                while (pageNo < end) {
+                    Reservation room = reserve(Math.min(end - pageNo, MAX_BATCH_PAGES), weight);
+                    if (room == null) {
+                        return loaded;
+                    }
+                    try {
+                        List<CompletableFuture<Frame>> loads = new ArrayList<CompletableFuture<Frame>>();
+                        int runStart = registerRun(tableId, pageNo, end, room.pages / weight, loads);
+                        if (loads.isEmpty()) {
+                            break;
+                        }
+                        pageNo = runStart + loads.size();
+                        loaded += readRun(tableId, runStart, loads, null, room);
+                    } finally {
+                        release(room);
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Sets aside free room for up to count pages of the given weight, so
+     * that installing them evicts nothing. Foreground misses evict as if
+     * the room were taken.
+     *
+     * @return the room set aside, or null if the pool has no free room
+     */
+    private synchronized Reservation reserve(int count, int weight) {
+        int free = numPages - usedPages - reservedPages;
+        int n = Math.min(count, free / weight);
+        if (n <= 0) {
+            return null;
+        }
+        Reservation room = new Reservation();
+        room.pages = n * weight;
+        reservedPages += room.pages;
+        return room;
+    }
+
+    /** Gives back the part of a reservation no page was installed in. */
+    private synchronized void release(Reservation room) {
+        reservedPages -= room.pages;
+        room.pages = 0;
+    }
+
+    /** @return true if the specified page is in the pool and needs no I/O */
+    boolean isCached(PageId pid) {
+        return pageMap.containsKey(pid);
+    }
+
+    private static synchronized Executor ioExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-io-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Reads a page that missed in the pool and installs it in a frame. Only
+     * one thread reads any given page; concurrent misses on it wait for that
+     * read to finish and share its frame.
+     */
+    private Frame loadFrame(PageId pid, BufferRing ring) throws DbException {
+        CompletableFuture<Frame> load = new CompletableFuture<Frame>();
+        CompletableFuture<Frame> inFlight = pendingLoads.putIfAbsent(pid, load);
+        if (inFlight != null) {
+            return awaitLoad(pid, inFlight);
+        }
+        return completeLoad(pid, load, ring, null, null);
+    }
+
+    /**
+     * Performs the read registered as load in pendingLoads, installs the
+     * page and completes load with its frame.
+     *
+     * @param room room set aside for the page, or null to evict as needed
+     * @param page the page if it has already been read, or null to read it
+     */
+    private Frame completeLoad(PageId pid, CompletableFuture<Frame> load, BufferRing ring,
+            Reservation room, Page page) throws DbException {
+        try {
+            // another thread may have finished loading the page between our
+            // lookup and the registration of this load
+            Frame frame = pageMap.get(pid);
+            if (frame == null) {
+                if (page == null) {
+                    page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                }
+                if (page == null) {
+                    throw new DbException("unable to read page " + pid.pageNumber()
+                            + " of table " + pid.getTableId());
+                }
+                frame = installPage(pid, page, ring, room);
+            }
+            load.complete(frame);
+            return frame;
+        } catch (DbException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingLoads.remove(pid, load);
+        }
+    }
+
+    /** Waits for another thread's read of the specified page. */
+    private Frame awaitLoad(PageId pid, CompletableFuture<Frame> load) throws DbException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for page " + pid.pageNumber()
+                    + " of table " + pid.getTableId());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DbException("failed to read page " + pid.pageNumber()
+                    + " of table " + pid.getTableId() + ": " + cause);
+        }
+    }
+
+    /**
+     * Places a freshly read page in a free frame. A full ring gives up its
+     * oldest frame first; otherwise a page is evicted if the pool is full.
+     * A page read into room set aside by reserve() takes that room instead.
+     */
+    private synchronized Frame installPage(PageId pid, Page page, BufferRing ring,
+            Reservation room) throws DbException {
+        if (ring != null && ring.released) {
+            // a prefetch that finished after its scan ended
+            ring = null;
+        }
+        if (ring != null && ring.isFull()) {
+            recycleOldest(ring);
+        }
+        int weight = weightOf(page);
+        if (room != null && room.pages >= weight) {
+            room.pages -= weight;
+            reservedPages -= weight;
+        } else if (usedPages > 0 && usedPages + reservedPages + weight > numPages) {
+            // a page larger than the default may have to push out several;
+            // one larger than the whole pool gets the pool to itself
+            int freed = 0;
+            do {
+                int before = usedPages;
+                evictPage();
+                freed += before - usedPages;
+            } while (freed < weight && usedPages > 0
+                    && usedPages + reservedPages + weight > numPages);
+            if (usedPages + reservedPages + weight > numPages) {
+                // the pool is shrinking: give up one more frame per miss
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    // try again on the next miss
+                }
+            }
+        }
+        if (freeSlots.isEmpty()) {
+            evictPage();
+        }
+        Frame frame = new Frame(freeSlots.remove(), page, ring, weight);
+        usedPages += weight;
+        if (arena != null && page instanceof HeapPage) {
+            ((HeapPage) page).moveTo(arena.slot(frame.slot));
+        }
+        frames[frame.slot] = frame;
+        pageMap.put(pid, frame);
+        if (ring != null) {
+            ring.add(pid);
+        } else {
+            policy.onMiss(pid);
+        }
+        return frame;
+    }
+
+    /**
+     * Frees the frame of the oldest page of a ring. If someone else has
+     * read that page or it is dirty, it is handed over to the policy and
+     * the ring shrinks instead.
+     */
+    private void recycleOldest(BufferRing ring) {
+        PageId pid = ring.poll();
+        Frame frame = pid == null ? null : pageMap.get(pid);
+        if (frame == null || frame.owner != ring) {
+            return;
+        }
+        if (frame.referenced || frame.page.isDirty() != null
+                || !frame.pins.compareAndSet(0, -1)) {
+            adopt(pid, frame);
+        } else {
+            discardPage(pid);
+            stats.recordEviction();
+        }
+    }
+
+    /** @return the number of pages of the default size a page counts for */
+    private static int weightOf(Page page) {
+        return page instanceof HeapPage ? weightOf(((HeapPage) page).getPageSize()) : 1;
+    }
+
+    /** @return the number of pages of the default size a page of the given size counts for */
+    private static int weightOf(int pageSize) {
+        return Math.max(1, (pageSize + getPageSize() - 1) / getPageSize());
+    }
+
+    /** Moves a ring frame under the control of the replacement policy. */
+    private void adopt(PageId pid, Frame frame) {
+        frame.owner = null;
+        policy.onMiss(pid);
+    }
+
+    /** Replaces the page held by a frame, keeping it in the frame's off-heap slot. */
+    private void replacePage(Frame frame, Page page) {
+        if (frame.page == page) {
+            return;
+        }
+        if (frame.page instanceof HeapPage) {
+            ((HeapPage) frame.page).detach();
+        }
+        if (arena != null && page instanceof HeapPage) {
+            ((HeapPage) page).moveTo(arena.slot(frame.slot));
+        }
+        frame.page = page;
+    }
+
+    /**
+     * Starts recording the id of every page requested from this pool to the
+     * specified file, replacing any trace in progress. See PolicyBenchmark
+     * for replaying the trace.
+     */
+    public void startTrace(File f) throws IOException {
+        AccessTraceRecorder old = recorder;
+        recorder = new AccessTraceRecorder(f);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Stops recording page requests and closes the trace file.
+     *
+     * @return the number of requests recorded, 0 if no trace was running
+     */
+    public long stopTrace() throws IOException {
+        AccessTraceRecorder old = recorder;
+        recorder = null;
+        if (old == null) {
+            return 0;
+        }
+        old.close();
+        return old.getAccessCount();
+    }
+
+    /**
+     * Returns a copy of this pool's counters together with the number of
+     * resident pages of every table.
+     */
+    public BufferPoolStats.Snapshot getStats() {
+        Map<Integer, Integer> pagesPerTable = new HashMap<Integer, Integer>();
+        for (PageId pid : pageMap.keySet()) {
+            Integer pages = pagesPerTable.get(pid.getTableId());
+            pagesPerTable.put(pid.getTableId(), pages == null ? 1 : pages + 1);
+        }
+        return stats.snapshot(numPages, pagesPerTable);
+    }
+
+    /** Sets the counters reported by getStats() back to zero. */
+    public void resetStats() {
+        stats.reset();
+    }
+
+    /** @return the lock manager holding the page locks of this pool's transactions */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return true if this pool keeps page images in off-heap memory */
+    public boolean isOffHeap() {
+        return arena != null;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
      * about who needs to call this and why, and why they can run the risk of
      * calling it.
      *
+     * The transaction's pins on the page are dropped as well.
+     *
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
-        // not necessary for lab1|lab2
+        unpinAll(tid, pid);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -109,19 +1085,25 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit, the before and after images of every page the transaction
+     * dirtied are logged, the pages are written to their files and a commit
+     * record is logged before the locks are released (FORCE): there is no
+     * redo at recovery yet, so committed changes must be on disk when this
+     * returns. On abort, pages the transaction dirtied are dropped from the
+     * pool, since their files hold the committed contents.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -129,7 +1111,90 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
-        // not necessary for lab1|lab2
+        if (tid == null) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                Set<PageId> dirtied = dirtiedBy.remove(tid);
+                if (dirtied == null) {
+                    return;
+                }
+                if (commit) {
+                    commitPages(tid, dirtied);
+                } else {
+                    rollbackPages(tid, dirtied);
+                }
+            }
+        } finally {
+            unpinAll(tid, null);
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Logs the pages a committing transaction dirtied, writes them in file
+     * order and logs the commit.
+     */
+    private void commitPages(TransactionId tid, Set<PageId> dirtied) throws IOException {
+        List<Page> logged = new ArrayList<Page>();
+        for (PageId pid : dirtied) {
+            Frame frame = pageMap.get(pid);
+            if (frame != null && tid.equals(frame.page.isDirty())) {
+                Database.getLogFile().logWrite(tid, frame.page.getBeforeImage(), frame.page);
+                logged.add(frame.page);
+            }
+        }
+        if (!logged.isEmpty()) {
+            Database.getLogFile().force();
+            writeInFileOrder(logged);
+            for (Page page : logged) {
+                page.markDirty(false, null);
+                page.setBeforeImage();
+            }
+        }
+        Database.getLogFile().logCommit(tid);
+    }
+
+    /**
+     * Drops the pages an aborting transaction dirtied, so that they are
+     * read back from disk with their committed contents.
+     */
+    private void rollbackPages(TransactionId tid, Set<PageId> dirtied) {
+        for (PageId pid : dirtied) {
+            Frame frame = pageMap.get(pid);
+            if (frame == null || !tid.equals(frame.page.isDirty())) {
+                continue;
+            }
+            discardPage(pid);
+        }
+    }
+
+    /**
+     * Marks pages modified by a transaction as dirty, makes sure the pool
+     * holds these versions, and remembers them for transactionComplete().
+     */
+    private synchronized void recordDirtyPages(TransactionId tid, List<Page> pages)
+            throws DbException {
+        if (pages == null) {
+            return;
+        }
+        Set<PageId> dirtied = dirtiedBy.get(tid);
+        if (dirtied == null) {
+            dirtied = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            dirtiedBy.put(tid, dirtied);
+        }
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            page.markDirty(true, tid);
+            Frame frame = pageMap.get(pid);
+            if (frame == null) {
+                installPage(pid, page, null, null);
+            } else {
+                replacePage(frame, page);
+            }
+            dirtied.add(pid);
+        }
     }
 
     /**
@@ -150,7 +1215,9 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        // not necessary for lab1
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> dirtied = file.insertTuple(tid, t);
+        recordDirtyPages(tid, dirtied);
     }
 
     /**
@@ -169,7 +1236,13 @@ public class BufferPool {
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        // not necessary for lab1
+        if (t.getRecordId() == null) {
+            throw new DbException("tuple is not stored in any table");
+        }
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> dirtied = file.deleteTuple(tid, t);
+        recordDirtyPages(tid, dirtied);
     }
 
     /**
@@ -179,8 +1252,16 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
-        // not necessary for lab1
-
+        List<PageId> dirty = new ArrayList<PageId>();
+        for (Frame frame : pageMap.values()) {
+            if (frame.page.isDirty() != null) {
+                dirty.add(frame.page.getId());
+            }
+        }
+        Collections.sort(dirty, FILE_ORDER);
+        for (PageId pid : dirty) {
+            flushPage(pid);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -193,7 +1274,89 @@ public class BufferPool {
     */
     public synchronized void discardPage(PageId pid) {
         // some code goes here
-        // not necessary for lab1
+        Frame frame = pageMap.remove(pid);
+        if (frame != null) {
+            // pins of the frame are void from now on
+            frame.pins.set(-1);
+            if (frame.owner == null) {
+                policy.onRemove(pid);
+            }
+            if (frame.page instanceof HeapPage) {
+                // the page may outlive its frame, so give it its own copy
+                // rather than a view of an arena slot or a file mapping
+                ((HeapPage) frame.page).detach();
+            }
+            frames[frame.slot] = null;
+            freeSlots.add(frame.slot);
+            usedPages -= frame.weight;
+            if (frames.length > numPages && usedPages <= numPages) {
+                trimFrames();
+            }
+        }
+    }
+
+    /**
+     * Changes the number of frames of this pool while it is in use. Growing
+     * takes effect immediately. When shrinking, no page is dropped right
+     * away; instead every miss evicts one page more than it needs until the
+     * pool is down to the new size, and the memory of the frames beyond it
+     * is released once they are all empty.
+     *
+     * @param newNumPages the new number of frames
+     */
+    public synchronized void resize(int newNumPages) {
+        if (newNumPages <= 0) {
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        }
+        if (newNumPages > frames.length) {
+            int oldLength = frames.length;
+            frames = Arrays.copyOf(frames, newNumPages);
+            if (arena != null) {
+                arena.resize(newNumPages);
+            }
+            for (int slot = oldLength; slot < newNumPages; slot++) {
+                freeSlots.add(slot);
+            }
+        }
+        numPages = newNumPages;
+        policy.setCapacity(newNumPages);
+        if (frames.length > numPages && usedPages <= numPages) {
+            trimFrames();
+        }
+    }
+
+    /**
+     * Drops the frames beyond numPages once the pool holds no more than
+     * numPages pages, moving pages still held there to free slots below.
+     * Pinned pages are not moved; trimming then waits for a later call.
+     */
+    private void trimFrames() {
+        for (int slot = numPages; slot < frames.length; slot++) {
+            Frame frame = frames[slot];
+            if (frame != null) {
+                if (!frame.pins.compareAndSet(0, -1)) {
+                    return;
+                }
+                Frame moved = new Frame(freeSlots.remove(), frame.page, frame.owner, frame.weight);
+                moved.referenced = frame.referenced;
+                if (arena != null && frame.page instanceof HeapPage) {
+                    ((HeapPage) frame.page).moveTo(arena.slot(moved.slot));
+                }
+                frames[moved.slot] = moved;
+                frames[slot] = null;
+                pageMap.put(frame.page.getId(), moved);
+            }
+        }
+        frames = Arrays.copyOf(frames, numPages);
+        Iterator<Integer> it = freeSlots.iterator();
+        while (it.hasNext()) {
+            if (it.next() >= numPages) {
+                it.remove();
+            }
+        }
+        if (arena != null) {
+            arena.resize(numPages);
+        }
     }
 
     /**
@@ -202,23 +1365,99 @@ public class BufferPool {
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
-        // not necessary for lab1
+        Frame frame = pageMap.get(pid);
+        if (frame == null) {
+            return;
+        }
+        Page page = frame.page;
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null) {
+            return;
+        }
+        // the changes are uncommitted: the before image must reach the log first
+        Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+        Database.getLogFile().force();
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        stats.recordDirtyWrites(1);
+        page.markDirty(false, null);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
-        // not necessary for lab1|lab2
+        Set<PageId> dirtied = dirtiedBy.get(tid);
+        if (dirtied == null) {
+            return;
+        }
+        List<PageId> pids = new ArrayList<PageId>(dirtied);
+        Collections.sort(pids, FILE_ORDER);
+        for (PageId pid : pids) {
+            flushPage(pid);
+        }
+    }
+
+    /**
+     * Writes pages to their files in file order, handing each file its
+     * pages at once so that DbFile.writePages() can merge adjacent ones
+     * into a single write.
+     */
+    private void writeInFileOrder(List<Page> pages) throws IOException {
+        List<Page> sorted = new ArrayList<Page>(pages);
+        Collections.sort(sorted, new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                return FILE_ORDER.compare(a.getId(), b.getId());
+            }
+        });
+        int start = 0;
+        while (start < sorted.size()) {
+            int end = start + 1;
+            int tableId = sorted.get(start).getId().getTableId();
+            while (end < sorted.size() && sorted.get(end).getId().getTableId() == tableId) {
+                end++;
+            }
+            Database.getCatalog().getDatabaseFile(tableId).writePages(sorted.subList(start, end));
+            stats.recordDirtyWrites(end - start);
+            start = end;
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * Victims are chosen by the replacement policy among the frames that
+     * do not belong to a scan's ring; frames of rings are only taken when
+     * the policy has nothing to offer. Dirty pages, whose changes are
+     * uncommitted, are never chosen (NO STEAL), so a victim never has to be
+     * written. Pinned pages are never chosen either; a victim is claimed by swapping its pin count
+     * from 0 to -1, so it cannot be pinned while it is being evicted.
+     *
+     * @throws DbException if every page in the buffer pool is dirty or pinned
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
-        // not necessary for lab1
+        PageId victim = policy.chooseVictim(new java.util.function.Predicate<PageId>() {
+            public boolean test(PageId pid) {
+                Frame frame = pageMap.get(pid);
+                return frame != null && frame.page.isDirty() == null
+                        && frame.pins.compareAndSet(0, -1);
+            }
+        });
+        if (victim != null) {
+            discardPage(victim);
+            stats.recordEviction();
+            return;
+        }
+        // rings of scans that were never closed may still hold frames
+        for (Frame frame : frames) {
+            if (frame != null && frame.owner != null && frame.page.isDirty() == null
+                    && frame.pins.compareAndSet(0, -1)) {
+                discardPage(frame.page.getId());
+                stats.recordEviction();
+                return;
+            }
+        }
+        throw new DbException("unable to evict a page: all pages in the buffer pool are dirty or pinned");
     }
 
 }
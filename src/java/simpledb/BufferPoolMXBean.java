@@ -0,0 +1,40 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * Management interface of the buffer pool, registered with the platform
+ * MBean server as "simpledb:type=BufferPool". It always describes the
+ * current buffer pool of the Database.
+ *
+ * @see BufferPoolStats
+ */
+public interface BufferPoolMXBean {
+
+    /** @return the number of frames in the pool */
+    int getNumPages();
+
+    /** @return the number of frames holding a page */
+    int getResidentPages();
+
+    long getHits();
+
+    long getMisses();
+
+    /** @return hits divided by requests, or 0 before the first request */
+    double getHitRatio();
+
+    long getEvictions();
+
+    /** @return the number of dirty pages written back to their files */
+    long getDirtyWrites();
+
+    /** @return the average time a getPage() miss took, in microseconds */
+    double getAverageMissMicros();
+
+    /** @return the number of resident pages of each table, by table id */
+    Map<Integer, Integer> getPagesPerTable();
+
+    /** Sets every counter back to zero. */
+    void resetCounters();
+}
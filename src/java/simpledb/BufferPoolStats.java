@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters describing how well a BufferPool works. Counters are striped
+ * adders, so recording an event from many threads does not contend on a
+ * single cache line; reading them sums the stripes.
+ * <p>
+ * Use {@link #snapshot} for a consistent-enough copy of all values, or the
+ * {@link BufferPoolMXBean} registered under {@link #OBJECT_NAME} to watch
+ * them from a JMX console.
+ *
+ * @Threadsafe
+ */
+public class BufferPoolStats {
+
+    /** Name under which the buffer pool MBean is registered */
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    /** An immutable copy of the counters of a pool at one point in time. */
+    public static class Snapshot {
+        public final int numPages;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long dirtyWrites;
+        public final long missNanos;
+        public final Map<Integer, Integer> pagesPerTable;
+
+        Snapshot(int numPages, long hits, long misses, long evictions, long dirtyWrites,
+                long missNanos, Map<Integer, Integer> pagesPerTable) {
+            this.numPages = numPages;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.dirtyWrites = dirtyWrites;
+            this.missNanos = missNanos;
+            this.pagesPerTable = Collections.unmodifiableMap(pagesPerTable);
+        }
+
+        /** @return hits divided by requests, or 0 before the first request */
+        public double hitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        /** @return the average time a miss took, in microseconds */
+        public double averageMissMicros() {
+            return misses == 0 ? 0 : missNanos / 1000.0 / misses;
+        }
+
+        /** @return the number of frames holding a page */
+        public int residentPages() {
+            int resident = 0;
+            for (int pages : pagesPerTable.values()) {
+                resident += pages;
+            }
+            return resident;
+        }
+
+        public String toString() {
+            return String.format("BufferPool[%d pages, %d resident, hits=%d, misses=%d, "
+                    + "hit ratio=%.3f, evictions=%d, dirty writes=%d, avg miss=%.1fus]",
+                    numPages, residentPages(), hits, misses, hitRatio(), evictions,
+                    dirtyWrites, averageMissMicros());
+        }
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder dirtyWrites = new LongAdder();
+    private final LongAdder missNanos = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss(long nanos) {
+        misses.increment();
+        missNanos.add(nanos);
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordDirtyWrites(int pages) {
+        dirtyWrites.add(pages);
+    }
+
+    /** Sets every counter back to zero. */
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        dirtyWrites.reset();
+        missNanos.reset();
+    }
+
+    /**
+     * Copies the counters. Events recorded while the copy is made may be
+     * partially included.
+     *
+     * @param numPages the size of the pool
+     * @param pagesPerTable the number of resident pages of each table
+     */
+    Snapshot snapshot(int numPages, Map<Integer, Integer> pagesPerTable) {
+        return new Snapshot(numPages, hits.sum(), misses.sum(), evictions.sum(),
+                dirtyWrites.sum(), missNanos.sum(), pagesPerTable);
+    }
+
+    /**
+     * Registers the buffer pool MBean with the platform MBean server unless
+     * it is registered already. Failures are logged, not thrown, since the
+     * database works without it.
+     */
+    static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Monitor(), name);
+            }
+        } catch (JMException e) {
+            Debug.log("unable to register %s: %s", OBJECT_NAME, e.getMessage());
+        } catch (SecurityException e) {
+            Debug.log("unable to register %s: %s", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    /** The MBean: reads the pool of the Database at every call. */
+    private static class Monitor implements BufferPoolMXBean {
+        private Snapshot current() {
+            return Database.getBufferPool().getStats();
+        }
+
+        public int getNumPages() {
+            return current().numPages;
+        }
+
+        public int getResidentPages() {
+            return current().residentPages();
+        }
+
+        public long getHits() {
+            return current().hits;
+        }
+
+        public long getMisses() {
+            return current().misses;
+        }
+
+        public double getHitRatio() {
+            return current().hitRatio();
+        }
+
+        public long getEvictions() {
+            return current().evictions;
+        }
+
+        public long getDirtyWrites() {
+            return current().dirtyWrites;
+        }
+
+        public double getAverageMissMicros() {
+            return current().averageMissMicros();
+        }
+
+        public Map<Integer, Integer> getPagesPerTable() {
+            return new HashMap<Integer, Integer>(current().pagesPerTable);
+        }
+
+        public void resetCounters() {
+            Database.getBufferPool().resetStats();
+        }
+    }
+}
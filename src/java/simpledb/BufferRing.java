@@ -0,0 +1,50 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small private set of buffer pool frames used by one sequential scan.
+ * Pages a scan reads through a ring replace the ring's oldest page instead
+ * of pages in the shared part of the pool, so a scan of a large table
+ * reuses a handful of frames rather than flushing every other page out.
+ * <p>
+ * Rings are obtained from {@link BufferPool#getScanRing} and must be
+ * handed back with {@link BufferPool#releaseRing} when the scan ends. A
+ * ring page that another transaction reads while it is in the ring is
+ * handed over to the shared pool rather than recycled.
+ *
+ * @see BufferPool
+ */
+public class BufferRing {
+
+    private final int capacity;
+
+    /** Pages read through this ring, oldest first (protected by the BufferPool) */
+    private final ArrayDeque<PageId> pages;
+
+    /** Set once the ring has been handed back to the pool (protected by the BufferPool) */
+    boolean released;
+
+    BufferRing(int capacity) {
+        this.capacity = capacity;
+        this.pages = new ArrayDeque<PageId>(capacity);
+    }
+
+    /** @return the number of frames this ring may occupy */
+    public int capacity() {
+        return capacity;
+    }
+
+    boolean isFull() {
+        return pages.size() >= capacity;
+    }
+
+    void add(PageId pid) {
+        pages.addLast(pid);
+    }
+
+    /** @return the oldest page read through this ring, or null if it is empty */
+    PageId poll() {
+        return pages.pollFirst();
+    }
+}
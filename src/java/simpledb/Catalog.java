@@ -132,6 +132,15 @@ public class Catalog {
         return tableMap.get(getTableName(tableid)).getFile();
     }
 
+    /**
+     * Returns the page size of the specified table's file.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public int getPageSize(int tableid) throws NoSuchElementException {
+        return getDatabaseFile(tableid).getPageSize();
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         return tableMap.get(getTableName(tableid)).getPrimaryKey();
@@ -150,12 +159,21 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (Table table : tableMap.values()) {
+            if (table.getFile() instanceof HeapFile) {
+                ((HeapFile) table.getFile()).close();
+            }
+        }
         tableMap.clear();
         fileIdToTableName.clear();
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as {@code name (field type, ...)},
+     * optionally followed by {@code pagesize <bytes>} for tables whose file
+     * does not use the default page size and by {@code compressed} for
+     * tables stored compressed, see HeapFile.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -196,7 +214,23 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                int pageSize = BufferPool.getPageSize();
+                boolean compressed = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (options.length() > 0) {
+                    String[] opts = options.split("\\s+");
+                    for (int i = 0; i < opts.length; i++) {
+                        if (opts[i].toLowerCase().equals("pagesize") && i + 1 < opts.length)
+                            pageSize = Integer.parseInt(opts[++i]);
+                        else if (opts[i].toLowerCase().equals("compressed"))
+                            compressed = true;
+                        else {
+                            System.out.println("Unknown table option " + options);
+                            System.exit(0);
+                        }
+                    }
+                }
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, pageSize, compressed);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -206,6 +240,9 @@ public class Catalog {
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (NumberFormatException e) {
+            System.out.println ("Invalid catalog entry : " + line);
+            System.exit(0);
         }
     }
 }
@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) replacement. A hit only sets the page's reference
+ * bit, without taking a lock; the clock hand clears the bits of the pages
+ * it passes and evicts the first page whose bit is already clear.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Node {
+        final PageId pid;
+        volatile boolean referenced;
+
+        Node(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    /** Every resident page, for lock-free hits */
+    private final ConcurrentHashMap<PageId, Node> resident = new ConcurrentHashMap<PageId, Node>();
+
+    /** Resident pages in clock order, the hand at the head (protected by this) */
+    private final ArrayDeque<Node> clock = new ArrayDeque<Node>();
+
+    public void onHit(PageId pid) {
+        Node node = resident.get(pid);
+        if (node != null && !node.referenced) {
+            node.referenced = true;
+        }
+    }
+
+    public synchronized void onMiss(PageId pid) {
+        if (!resident.containsKey(pid)) {
+            Node node = new Node(pid);
+            resident.put(pid, node);
+            clock.addLast(node);
+        }
+    }
+
+    public synchronized PageId chooseVictim(java.util.function.Predicate<PageId> evictable) {
+        // two rotations are enough: the first clears every reference bit
+        for (int i = 2 * clock.size(); i > 0; i--) {
+            Node node = clock.pollFirst();
+            if (!node.referenced && evictable.test(node.pid)) {
+                resident.remove(node.pid);
+                return node.pid;
+            }
+            node.referenced = false;
+            clock.addLast(node);
+        }
+        return null;
+    }
+
+    public synchronized void onRemove(PageId pid) {
+        Node node = resident.remove(pid);
+        if (node != null) {
+            clock.remove(node);
+        }
+    }
+
+    public void setCapacity(int capacity) {
+        // CLOCK has no parameters that depend on the pool size
+    }
+}
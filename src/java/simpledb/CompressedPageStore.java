@@ -0,0 +1,559 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the pages of a compressed HeapFile. Each page is deflated on
+ * write and kept in an extent: a run of UNIT-byte units of the file that
+ * starts with a header
+ * <pre>
+ *   int MAGIC, int page number (FREE for a freed extent),
+ *   long sequence number, int number of units, int stored length
+ * </pre>
+ * followed by the stored bytes: the deflated page, or the page itself
+ * when deflating does not make it smaller, in which case the stored
+ * length is the page size.
+ * <p>
+ * The extent map gives the extent and sequence number of every page. A
+ * page is never rewritten in place: every write moves it to the first
+ * free extent that is large enough, or to a new one at the end of the
+ * file, and its old extent becomes free once the map points to the new
+ * one. An extent holding the current version of a page is thus never
+ * written to, and a reader that finds the map unchanged after its read
+ * knows it read whole extents. Pages written together at the end of the
+ * file, e.g. by a bulk load, get adjacent extents, which read() then
+ * fetches with a single read.
+ * <p>
+ * Like the free space map, the extent map is saved next to the file by
+ * save(), if pages were written, and deleted once read. After a crash it
+ * is rebuilt by walking the extents of the file and taking, for each
+ * page, the extent with the highest sequence number. An extent whose
+ * header does not match the map, which can only happen with a map that
+ * does not belong to the file, also has the map rebuilt.
+ *
+ * @Threadsafe
+ */
+class CompressedPageStore {
+
+    /** Size of the units extents are allocated in */
+    static final int UNIT = 512;
+
+    /** Size of the header of an extent */
+    static final int HEADER = 24;
+
+    /** Page number in the header of an extent that was freed */
+    private static final int FREE = -1;
+
+    private static final int MAGIC = 0x53444243;
+    private static final int MAP_MAGIC = 0x5344424d;
+
+    /** Positional I/O on the file holding the extents. */
+    interface Storage {
+        /** Reads from position until buf is full or the file ends. */
+        void read(ByteBuffer buf, long position) throws IOException;
+
+        /** Writes all of buf at position. */
+        void write(ByteBuffer buf, long position) throws IOException;
+
+        long size() throws IOException;
+
+        void truncate(long size) throws IOException;
+    }
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final Storage storage;
+    private final int pageSize;
+
+    /** First unit of the extent of each page, or -1 if it has none (all protected by this) */
+    private int[] offsets;
+    /** Units of the extent of each page */
+    private int[] units;
+    /** Bytes stored in the extent of each page, after the header */
+    private int[] lengths;
+    /** Sequence number of the extent of each page */
+    private long[] seqs;
+    private int numPages;
+    /** Free extents, as {first unit, units} pairs */
+    private final List<int[]> free = new ArrayList<int[]>();
+    /** Units in use by extents, free or not */
+    private int endUnit;
+    private long nextSeq;
+    /** Whether pages were written or dropped since the store was opened */
+    private boolean modified;
+
+    private CompressedPageStore(Storage storage, int pageSize) {
+        this.storage = storage;
+        this.pageSize = pageSize;
+        this.offsets = new int[16];
+        this.units = new int[16];
+        this.lengths = new int[16];
+        this.seqs = new long[16];
+        Arrays.fill(offsets, -1);
+    }
+
+    /**
+     * Opens the pages stored in a file, reading the extent map saved by
+     * save() if there is one that covers the whole file and rebuilding it
+     * from the extents otherwise.
+     * The saved map is deleted once read.
+     *
+     * @param mapFile the file save() writes the extent map to
+     */
+    static CompressedPageStore open(Storage storage, int pageSize, File mapFile)
+            throws IOException {
+        if (mapFile.exists()) {
+            CompressedPageStore store = new CompressedPageStore(storage, pageSize);
+            try {
+                // a map saved before the file last changed size is stale
+                if (store.load(mapFile) && storage.size() == (long) store.endUnit * UNIT) {
+                    return store;
+                }
+            } catch (IOException e) {
+                Debug.log("ignoring extent map %s: %s", mapFile, e.getMessage());
+            } finally {
+                mapFile.delete();
+            }
+        }
+        CompressedPageStore store = new CompressedPageStore(storage, pageSize);
+        store.rebuild();
+        return store;
+    }
+
+    /** @return the number of pages stored, including pages never written below the last one */
+    synchronized int numPages() {
+        return numPages;
+    }
+
+    /** @return the number of bytes the extents take in the file */
+    synchronized long storedBytes() {
+        return (long) endUnit * UNIT;
+    }
+
+    /**
+     * Reads the pages starting at firstPage into buf, until it is full.
+     * Pages that have never been written read as zeros.
+     */
+    void read(ByteBuffer buf, int firstPage) throws IOException {
+        // a page that moved while we read may have had its old extent reused
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (tryRead(buf, firstPage)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            // no page can move now, so only a wrong map fails the read
+            if (tryRead(buf, firstPage)) {
+                return;
+            }
+            Debug.log("extent map does not match the extents of pages %d to %d; rebuilding it",
+                    firstPage, firstPage + buf.remaining() / pageSize - 1);
+            reset();
+            rebuild();
+            modified = true;
+            if (!tryRead(buf, firstPage)) {
+                throw new IOException("extents of pages " + firstPage + " to "
+                        + (firstPage + buf.remaining() / pageSize - 1) + " are corrupt");
+            }
+        }
+    }
+
+    /**
+     * @return false, leaving buf as it was, if a page moved while it was
+     *         read or an extent does not hold the page the map says it does
+     */
+    private boolean tryRead(ByteBuffer buf, int firstPage) throws IOException {
+        int count = buf.remaining() / pageSize;
+        int[] at = new int[count];
+        int[] size = new int[count];
+        long[] seq = new long[count];
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                int pageNo = firstPage + i;
+                at[i] = pageNo < numPages ? offsets[pageNo] : -1;
+                size[i] = pageNo < numPages ? units[pageNo] : 0;
+                seq[i] = pageNo < numPages ? seqs[pageNo] : 0;
+            }
+        }
+        // pages in adjacent extents come with one read
+        byte[][] runs = new byte[count][];
+        int i = 0;
+        while (i < count) {
+            if (at[i] < 0) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < count && at[end] == at[end - 1] + size[end - 1]) {
+                end++;
+            }
+            ByteBuffer run = ByteBuffer.allocate((at[end - 1] + size[end - 1] - at[i]) * UNIT);
+            storage.read(run, (long) at[i] * UNIT);
+            runs[i] = run.array();
+            i = end;
+        }
+        synchronized (this) {
+            for (i = 0; i < count; i++) {
+                int pageNo = firstPage + i;
+                int now = pageNo < numPages ? offsets[pageNo] : -1;
+                if (now != at[i] || (now >= 0 && seqs[pageNo] != seq[i])) {
+                    return false;
+                }
+            }
+        }
+        byte[] page = new byte[pageSize];
+        int start = buf.position();
+        byte[] run = null;
+        int runStart = 0;
+        for (i = 0; i < count; i++) {
+            if (at[i] < 0) {
+                Arrays.fill(page, (byte) 0);
+            } else {
+                if (runs[i] != null) {
+                    run = runs[i];
+                    runStart = at[i];
+                }
+                if (!decode(run, (at[i] - runStart) * UNIT, size[i], firstPage + i, seq[i], page)) {
+                    buf.position(start);
+                    return false;
+                }
+            }
+            buf.position(start + i * pageSize);
+            buf.put(page);
+        }
+        buf.position(start + count * pageSize);
+        return true;
+    }
+
+    /**
+     * Decompresses the page stored in the extent of the given units at off
+     * into page.
+     *
+     * @return false if the extent does not hold the given version of the page
+     */
+    private boolean decode(byte[] extent, int off, int extentUnits, int pageNo, long seq,
+            byte[] page) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(extent, off, HEADER);
+        if (header.getInt() != MAGIC || header.getInt() != pageNo || header.getLong() != seq
+                || header.getInt() != extentUnits) {
+            return false;
+        }
+        int stored = header.getInt();
+        if (stored < 0 || stored > pageSize || HEADER + stored > extentUnits * UNIT) {
+            return false;
+        }
+        if (stored == pageSize) {
+            System.arraycopy(extent, off + HEADER, page, 0, pageSize);
+            return true;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(extent, off + HEADER, stored);
+        try {
+            int n = 0;
+            while (n < pageSize && !inflater.finished()) {
+                int inflated = inflater.inflate(page, n, pageSize - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != pageSize) {
+                throw new IOException("extent of page " + pageNo + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("extent of page " + pageNo + " is corrupt: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Compresses and writes the pages held by buf, starting at firstPage,
+     * each to a new extent. Pages whose new extents are adjacent, e.g. at
+     * the end of the file, are written together.
+     */
+    void write(ByteBuffer buf, int firstPage) throws IOException {
+        int count = buf.remaining() / pageSize;
+        byte[][] extents = new byte[count][];
+        byte[] page = new byte[pageSize];
+        for (int i = 0; i < count; i++) {
+            buf.get(page);
+            extents[i] = encode(page);
+        }
+        synchronized (this) {
+            int[] at = new int[count];
+            int[] size = new int[count];
+            long[] seq = new long[count];
+            for (int i = 0; i < count; i++) {
+                int pageNo = firstPage + i;
+                int stored = extents[i].length - HEADER;
+                grow(pageNo + 1);
+                int[] extent = allocate(unitsFor(stored));
+                at[i] = extent[0];
+                size[i] = extent[1];
+                seq[i] = nextSeq++;
+                ByteBuffer.wrap(extents[i]).putInt(MAGIC).putInt(pageNo).putLong(seq[i])
+                        .putInt(size[i]).putInt(stored);
+            }
+            int i = 0;
+            while (i < count) {
+                int end = i + 1;
+                while (end < count && at[end] == at[end - 1] + size[end - 1]) {
+                    end++;
+                }
+                ByteBuffer run = ByteBuffer.allocate((at[end - 1] + size[end - 1] - at[i]) * UNIT);
+                for (int p = i; p < end; p++) {
+                    run.position((at[p] - at[i]) * UNIT);
+                    run.put(extents[p]);
+                }
+                run.clear();
+                storage.write(run, (long) at[i] * UNIT);
+                i = end;
+            }
+            for (i = 0; i < count; i++) {
+                int pageNo = firstPage + i;
+                // readers of the old extent see the map change and retry
+                if (offsets[pageNo] >= 0) {
+                    free.add(new int[] { offsets[pageNo], units[pageNo] });
+                }
+                offsets[pageNo] = at[i];
+                units[pageNo] = size[i];
+                lengths[pageNo] = extents[i].length - HEADER;
+                seqs[pageNo] = seq[i];
+            }
+            modified = true;
+        }
+    }
+
+    /**
+     * @return a header-sized gap followed by the deflated page, or by the
+     *         page itself if deflating does not make it smaller
+     */
+    private byte[] encode(byte[] page) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(page);
+        deflater.finish();
+        byte[] out = new byte[HEADER + pageSize];
+        int n = 0;
+        while (!deflater.finished() && n < pageSize - 1) {
+            int deflated = deflater.deflate(out, HEADER + n, pageSize - 1 - n);
+            if (deflated == 0) {
+                break;
+            }
+            n += deflated;
+        }
+        if (!deflater.finished()) {
+            System.arraycopy(page, 0, out, HEADER, pageSize);
+            return out;
+        }
+        return Arrays.copyOf(out, HEADER + n);
+    }
+
+    private static int unitsFor(int stored) {
+        return (HEADER + stored + UNIT - 1) / UNIT;
+    }
+
+    /** @return the first free extent of at least the given units, or a new one */
+    private int[] allocate(int needed) {
+        for (Iterator<int[]> it = free.iterator(); it.hasNext();) {
+            int[] extent = it.next();
+            if (extent[1] >= needed) {
+                it.remove();
+                return extent;
+            }
+        }
+        int[] extent = new int[] { endUnit, needed };
+        endUnit += needed;
+        return extent;
+    }
+
+    private void grow(int pages) {
+        if (pages <= numPages) {
+            return;
+        }
+        if (pages > offsets.length) {
+            int length = Math.max(pages, offsets.length * 2);
+            int old = offsets.length;
+            offsets = Arrays.copyOf(offsets, length);
+            units = Arrays.copyOf(units, length);
+            lengths = Arrays.copyOf(lengths, length);
+            seqs = Arrays.copyOf(seqs, length);
+            Arrays.fill(offsets, old, length, -1);
+        }
+        numPages = pages;
+    }
+
+    /** Forgets every page and free extent, for rebuild() to start over. */
+    private void reset() {
+        Arrays.fill(offsets, -1);
+        numPages = 0;
+        free.clear();
+        endUnit = 0;
+    }
+
+    /**
+     * Drops the pages from the given one on. Their extents are marked free
+     * on disk, so a rebuilt map does not bring them back, and the file is
+     * cut after the last extent still in use.
+     */
+    synchronized void truncate(int pages) throws IOException {
+        for (int pageNo = pages; pageNo < numPages; pageNo++) {
+            if (offsets[pageNo] < 0) {
+                continue;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(FREE).putLong(nextSeq++).putInt(units[pageNo]).putInt(0);
+            header.flip();
+            storage.write(header, (long) offsets[pageNo] * UNIT);
+            free.add(new int[] { offsets[pageNo], units[pageNo] });
+            offsets[pageNo] = -1;
+        }
+        numPages = Math.min(numPages, pages);
+        modified = true;
+        boolean shrunk = true;
+        while (shrunk) {
+            shrunk = false;
+            for (Iterator<int[]> it = free.iterator(); it.hasNext();) {
+                int[] extent = it.next();
+                if (extent[0] + extent[1] == endUnit) {
+                    endUnit = extent[0];
+                    it.remove();
+                    shrunk = true;
+                }
+            }
+        }
+        storage.truncate((long) endUnit * UNIT);
+    }
+
+    /** Rebuilds the extent map by walking the extents of the file. */
+    private void rebuild() throws IOException {
+        long size = storage.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        int unit = 0;
+        while ((long) unit * UNIT + HEADER <= size) {
+            header.clear();
+            storage.read(header, (long) unit * UNIT);
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+                break;
+            }
+            int pageNo = header.getInt();
+            long seq = header.getLong();
+            int extentUnits = header.getInt();
+            int stored = header.getInt();
+            if (extentUnits <= 0 || stored < 0 || stored > pageSize || extentUnits < unitsFor(stored)) {
+                break;
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+            if (pageNo == FREE) {
+                free.add(new int[] { unit, extentUnits });
+            } else {
+                grow(pageNo + 1);
+                if (offsets[pageNo] < 0 || seq > seqs[pageNo]) {
+                    if (offsets[pageNo] >= 0) {
+                        free.add(new int[] { offsets[pageNo], units[pageNo] });
+                    }
+                    offsets[pageNo] = unit;
+                    units[pageNo] = extentUnits;
+                    lengths[pageNo] = stored;
+                    seqs[pageNo] = seq;
+                } else {
+                    free.add(new int[] { unit, extentUnits });
+                }
+            }
+            unit += extentUnits;
+        }
+        // anything after the last whole extent was torn by a crash
+        endUnit = unit;
+    }
+
+    /**
+     * Writes the extent map to a file, to be read back by open(), if pages
+     * were written or dropped since the store was opened. An unchanged
+     * store leaves the file alone, so a store opened only to read cannot
+     * overwrite the map of one that wrote.
+     */
+    synchronized void save(File f) throws IOException {
+        if (!modified) {
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAP_MAGIC);
+            out.writeInt(pageSize);
+            out.writeInt(numPages);
+            out.writeInt(endUnit);
+            out.writeLong(nextSeq);
+            for (int pageNo = 0; pageNo < numPages; pageNo++) {
+                out.writeInt(offsets[pageNo]);
+                out.writeInt(units[pageNo]);
+                out.writeInt(lengths[pageNo]);
+                out.writeLong(seqs[pageNo]);
+            }
+            out.writeInt(free.size());
+            for (int[] extent : free) {
+                out.writeInt(extent[0]);
+                out.writeInt(extent[1]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** @return false if the map was saved for pages of another size */
+    private boolean load(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAP_MAGIC) {
+                throw new IOException(f + " is not an extent map");
+            }
+            if (in.readInt() != pageSize) {
+                return false;
+            }
+            int pages = in.readInt();
+            int end = in.readInt();
+            long seq = in.readLong();
+            grow(pages);
+            for (int pageNo = 0; pageNo < pages; pageNo++) {
+                offsets[pageNo] = in.readInt();
+                units[pageNo] = in.readInt();
+                lengths[pageNo] = in.readInt();
+                seqs[pageNo] = in.readLong();
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                free.add(new int[] { in.readInt(), in.readInt() });
+            }
+            endUnit = end;
+            nextSeq = seq;
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -15,8 +15,11 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
+    static {
+        BufferPoolStats.registerMBean();
+    }
     private final Catalog _catalog;
-    private final BufferPool _bufferpool;
+    private volatile BufferPool _bufferpool;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -55,22 +58,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
-        java.lang.reflect.Field bufferPoolF=null;
-        try {
-            bufferPoolF = Database.class.getDeclaredField("_bufferpool");
-            bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
-        } catch (NoSuchFieldException e) {
-            e.printStackTrace();
-        } catch (SecurityException e) {
-            e.printStackTrace();
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        }
-//        _instance._bufferpool = new BufferPool(pages);
-        return _instance.get()._bufferpool;
+        BufferPool pool = new BufferPool(pages);
+        _instance.get()._bufferpool = pool;
+        return pool;
+    }
+
+    /**
+     * Changes the number of pages of the buffer pool without dropping its
+     * cached pages. See {@link BufferPool#resize}.
+     */
+    public static BufferPool resizeBufferPool(int pages) {
+        BufferPool pool = getBufferPool();
+        pool.resize(pages);
+        return pool;
     }
 
     // reset the database, used for unit tests only.
@@ -2,6 +2,10 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.io.*;
 
 /**
@@ -19,6 +23,27 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Starts reading the specified page without blocking the caller. The
+     * default implementation runs readPage() on the common fork/join pool;
+     * files that can issue asynchronous reads should override it.
+     *
+     * @return a future completed with the page, or exceptionally if it
+     *         cannot be read
+     */
+    public default CompletableFuture<Page> readPageAsync(final PageId id) {
+        return CompletableFuture.supplyAsync(new Supplier<Page>() {
+            public Page get() {
+                Page page = readPage(id);
+                if (page == null) {
+                    throw new UncheckedDbException(new DbException("unable to read page "
+                            + id.pageNumber() + " of table " + id.getTableId()));
+                }
+                return page;
+            }
+        });
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -28,6 +53,29 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Returns the size in bytes of the pages of this file. Files that do
+     * not choose their own page size use the default of the buffer pool.
+     *
+     * @see BufferPool#getPageSize()
+     */
+    public default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
+
+    /**
+     * Push several pages of this file to disk. Implementations may merge
+     * pages that are adjacent in the file into fewer, larger writes.
+     *
+     * @param pages the pages to write, ordered by page number
+     * @throws IOException if a write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -68,6 +116,66 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns a sequential stream over the tuples of this DbFile, read
+     * through the buffer pool as part of the given transaction. Errors
+     * while reading are thrown as UncheckedDbException. Closing the stream
+     * releases the underlying iterator early.
+     */
+    public default Stream<Tuple> stream(TransactionId tid) {
+        final DbFileIterator it = iterator(tid);
+        Iterator<Tuple> tuples = new Iterator<Tuple>() {
+            private boolean opened;
+
+            public boolean hasNext() {
+                try {
+                    if (!opened) {
+                        it.open();
+                        opened = true;
+                    }
+                    if (it.hasNext()) {
+                        return true;
+                    }
+                    it.close();
+                    return false;
+                } catch (DbException e) {
+                    throw new UncheckedDbException(e);
+                } catch (TransactionAbortedException e) {
+                    throw new UncheckedDbException(e);
+                }
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return it.next();
+                } catch (DbException e) {
+                    throw new UncheckedDbException(e);
+                } catch (TransactionAbortedException e) {
+                    throw new UncheckedDbException(e);
+                }
+            }
+        };
+        Spliterator<Tuple> split = Spliterators.spliteratorUnknownSize(tuples,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(split, false).onClose(new Runnable() {
+            public void run() {
+                it.close();
+            }
+        });
+    }
+
+    /**
+     * Returns a possibly parallel stream over the tuples of this DbFile.
+     * The default splits no better than stream(); files that can divide
+     * their pages among threads override it.
+     */
+    public default Stream<Tuple> parallelStream(TransactionId tid) {
+        return stream(tid).parallel();
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+
+/**
+ * Access to direct I/O, which reads and writes files without going through
+ * the operating system's page cache. The JDK supports it from version 10 on
+ * through com.sun.nio.file.ExtendedOpenOption.DIRECT; since SimpleDb builds
+ * for Java 8, the option and the other new APIs it needs are looked up by
+ * reflection, and direct I/O is reported as unsupported when they are
+ * missing.
+ * <p>
+ * Direct I/O requires buffers, file offsets and lengths aligned to the
+ * block size of the file system. Callers read and write through the
+ * aligned buffers returned by buffer().
+ */
+class DirectIo {
+
+    /** The DIRECT open option, or null if this JDK does not have it */
+    static final OpenOption DIRECT = lookupOption();
+
+    private static final Method ALIGNED_SLICE = lookupMethod(ByteBuffer.class, "alignedSlice", int.class);
+    private static final Method ALIGNMENT_OFFSET =
+            lookupMethod(ByteBuffer.class, "alignmentOffset", int.class, int.class);
+    private static final Method BLOCK_SIZE = lookupMethod(FileStore.class, "getBlockSize");
+
+    /** Aligned buffer of each thread, reused across reads and writes */
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+    private DirectIo() {
+    }
+
+    /** @return true if this JDK can open files for direct I/O */
+    static boolean isAvailable() {
+        return DIRECT != null && ALIGNED_SLICE != null && ALIGNMENT_OFFSET != null
+                && BLOCK_SIZE != null;
+    }
+
+    /**
+     * Returns the block size of the file system holding a file, to which
+     * direct I/O must be aligned.
+     *
+     * @param path the file, or a file in the same directory if it does not exist yet
+     */
+    static int blockSize(Path path) throws IOException {
+        if (BLOCK_SIZE == null) {
+            throw new IOException("block size not available");
+        }
+        Path existing = Files.exists(path) ? path : path.toAbsolutePath().getParent();
+        try {
+            return (int) ((Long) BLOCK_SIZE.invoke(Files.getFileStore(existing))).longValue();
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("unable to read block size of " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Returns a cleared direct buffer of exactly size bytes whose address is
+     * aligned to align bytes. The buffer belongs to the calling thread and is
+     * reused by its next call if it is large enough and aligned to the
+     * alignment that call asks for.
+     */
+    static ByteBuffer buffer(int size, int align) {
+        ByteBuffer buf = buffers.get();
+        try {
+            if (buf == null || buf.capacity() < size || buf.capacity() % align != 0
+                    || (Integer) ALIGNMENT_OFFSET.invoke(buf, 0, align) != 0) {
+                ByteBuffer raw = ByteBuffer.allocateDirect(Math.max(size, align) + align);
+                buf = (ByteBuffer) ALIGNED_SLICE.invoke(raw, align);
+                buffers.set(buf);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("aligned buffers not available", e);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    private static OpenOption lookupOption() {
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : options.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) option).name())) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // not a JDK with extended open options
+        }
+        return null;
+    }
+
+    private static Method lookupMethod(Class<?> c, String name, Class<?>... parameters) {
+        try {
+            return c.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
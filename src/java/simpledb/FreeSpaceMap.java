@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap remembers how many free tuple slots each page of a HeapFile
+ * has, so that an insert finds a page with room without reading the pages
+ * that are full.
+ * <p>
+ * Each page takes one byte: its number of free slots, capped at
+ * MAX_TRACKED, or UNKNOWN for pages whose free space has not been seen
+ * yet. Unknown pages are candidates for inserts; the insert reads them
+ * and records what it finds. The map is a hint: it can be stale after an
+ * abort or a crash, so callers check the page itself before using a slot.
+ * <p>
+ * findPage() resumes from the lowest page that may have room, which only
+ * moves back when a page gains free space, so a series of inserts looks at
+ * each full page at most once.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** Value of a page whose free space is not known */
+    public static final int UNKNOWN = 0xFF;
+
+    /** Largest number of free slots recorded exactly */
+    public static final int MAX_TRACKED = UNKNOWN - 1;
+
+    private static final int MAGIC = 0x53444246;
+
+    /** Free slots of each page, see UNKNOWN and MAX_TRACKED (protected by this) */
+    private byte[] free;
+    private int numPages;
+
+    /** No page below this one has room (protected by this) */
+    private int hint;
+
+    /** Creates a map of a file whose pages are all of unknown free space. */
+    public FreeSpaceMap() {
+        this(new byte[16], 0);
+    }
+
+    private FreeSpaceMap(byte[] free, int numPages) {
+        this.free = free;
+        this.numPages = numPages;
+        this.hint = 0;
+    }
+
+    /** @return the number of pages covered by this map */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Returns the free slots recorded for a page: an exact count up to
+     * MAX_TRACKED, or UNKNOWN for pages not seen yet.
+     */
+    public synchronized int getFreeSlots(int pageNo) {
+        if (pageNo >= numPages) {
+            return UNKNOWN;
+        }
+        return free[pageNo] & 0xFF;
+    }
+
+    /**
+     * Returns the lowest page of a file of filePages pages that may have a
+     * free slot, or -1 if every page is known to be full. Pages added to
+     * the file since the map last saw it are of unknown free space.
+     */
+    public synchronized int findPage(int filePages) {
+        grow(filePages);
+        while (hint < filePages && free[hint] == 0) {
+            hint++;
+        }
+        return hint < filePages ? hint : -1;
+    }
+
+    /**
+     * Records the number of free slots of a page, e.g. after a tuple was
+     * inserted into or deleted from it.
+     */
+    public synchronized void update(int pageNo, int freeSlots) {
+        grow(pageNo + 1);
+        free[pageNo] = (byte) Math.min(freeSlots, MAX_TRACKED);
+        if (freeSlots > 0 && pageNo < hint) {
+            hint = pageNo;
+        }
+    }
+
+    private void grow(int pages) {
+        if (pages <= numPages) {
+            return;
+        }
+        if (pages > free.length) {
+            free = Arrays.copyOf(free, Math.max(pages, free.length * 2));
+        }
+        Arrays.fill(free, numPages, pages, (byte) UNKNOWN);
+        numPages = pages;
+    }
+
+    /** Writes this map to a file, to be read back by load(). */
+    public synchronized void save(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(numPages);
+            out.write(free, 0, numPages);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Reads a map written by save(). */
+    public static FreeSpaceMap load(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not a free space map");
+            }
+            int pages = in.readInt();
+            byte[] free = new byte[Math.max(16, pages)];
+            in.readFully(free, 0, pages);
+            return new FreeSpaceMap(free, pages);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,7 +1,22 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -9,17 +24,98 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A HeapFile can instead be stored compressed, which suits tables whose
+ * pages are mostly padding, e.g. short strings: pages are deflated on
+ * write and kept through an extent map, see CompressedPageStore, and
+ * inflated on read, so scans read fewer bytes. Buffer pool frames still
+ * hold uncompressed pages. To compress an existing table, bulkLoad() a
+ * scan of it into an empty compressed HeapFile.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages bulkLoad() writes at once */
+    private static final int BULK_WRITE_PAGES = 64;
+
+    /** Upper bound on the bytes covered by one mapping, which is indexed by int */
+    private static final int MAX_MAPPING_BYTES = 1 << 30;
+
+    /**
+     * Read-only mappings of consecutive runs of pagesPerMapping pages,
+     * covering the first pages pages of the file.
+     */
+    private static class Mapping {
+        final MappedByteBuffer[] chunks;
+        final int pagesPerMapping;
+        final int pages;
+
+        Mapping(MappedByteBuffer[] chunks, int pagesPerMapping, int pages) {
+            this.chunks = chunks;
+            this.pagesPerMapping = pagesPerMapping;
+            this.pages = pages;
+        }
+    }
+
     private File file;
     private TupleDesc tupleDesc;
+    private final int pageSize;
+    private final boolean compressed;
+
+    /** Extents of the pages of a compressed file, opened on first use (protected by this) */
+    private CompressedPageStore store;
 
     /**
-     * Constructs a heap file backed by the specified file.
+     * Channel shared by all reads and writes of this file, opened read-only
+     * on the first read and reopened for writing on the first write. It is
+     * replaced while holding this; readers take it without locking.
+     * Positional reads and writes on it do not move a shared file pointer,
+     * so concurrent readers do not serialize.
+     */
+    private volatile FileChannel channel;
+
+    /** The channel if it was opened for writing, else null; replaced along with channel */
+    private volatile FileChannel writableChannel;
+
+    /** Held while pages are appended to the file, by an insert or a bulk load */
+    private final Object appendLock = new Object();
+
+    /**
+     * Number of pages readers see, or -1 until first asked for. Taken from
+     * the length of the file once, then raised by the writes that append
+     * pages, so that scans do not stat the file for every page. Pages a
+     * bulk load appends are only counted once the load has completed.
+     */
+    private final AtomicInteger pageCount = new AtomicInteger(-1);
+
+    /** Free slots per page, loaded or created on the first insert or delete (protected by this) */
+    private FreeSpaceMap freeSpace;
+
+    /**
+     * Whether a subclass overrides readPage(). readPages() and
+     * readPageAsync() then build every page with readPage() rather than
+     * from the data they read themselves.
+     */
+    private final boolean readPageOverridden;
+
+    /** Channel of readPageAsync(), opened on first use */
+    private AsynchronousFileChannel asyncChannel;
+
+    /** Whether the channel bypasses the OS page cache, see setDirectIo() */
+    private volatile boolean directIo;
+    /** Block size direct I/O is aligned to */
+    private volatile int blockSize;
+
+    /** Number of pages per mapping when memory mapped, 0 when reading through the channel */
+    private volatile int pagesPerMapping;
+    /** Current mappings when memory mapped; replaced as a whole when the file grows */
+    private volatile Mapping mapping;
+
+    /**
+     * Constructs a heap file backed by the specified file, with pages of
+     * the buffer pool's current default size.
      * 
      * @param f
      *            the file that stores the on-disk backing store for this heap
@@ -27,8 +123,54 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+        this(f, td, BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, with pages of
+     * the given size. Large pages suit tables that are mostly scanned; the
+     * file must have been written with the same page size.
+     *
+     * @param pageSize the number of bytes per page
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
+        this(f, td, pageSize, false);
+    }
+
+    /**
+     * Constructs a heap file with pages of the given size, stored
+     * compressed if compressed is true. The file must have been written
+     * with the same page size and in the same format.
+     *
+     * @param compressed true to deflate each page on disk
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize, boolean compressed) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("invalid page size " + pageSize);
+        }
         file = f;
         tupleDesc = td;
+        this.pageSize = pageSize;
+        this.compressed = compressed;
+        this.readPageOverridden = overridesReadPage(getClass());
+    }
+
+    private static boolean overridesReadPage(Class<?> c) {
+        try {
+            return c.getMethod("readPage", PageId.class).getDeclaringClass() != HeapFile.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /** @return true if the pages of this file are stored compressed */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return pageSize;
     }
 
     /**
@@ -65,23 +207,52 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Switches reads of this file to memory mappings of the file. Suits
+     * tables that are loaded once, e.g. by HeapFileEncoder, and then only
+     * read: readPage builds the page over the mapping instead of issuing
+     * a read, and the page is only copied to the heap when it is modified
+     * or leaves the buffer pool. The file is mapped in several chunks so that files larger
+     * than 2GB can be mapped, and the mappings are extended when the file
+     * grows. Writes still go through the file channel and are visible in
+     * the mappings. Compressed files are never mapped.
+     */
+    public void setMemoryMapped(boolean mapped) {
+        setMemoryMapped(mapped, Math.max(1, MAX_MAPPING_BYTES / pageSize));
+    }
+
+    /** As setMemoryMapped(boolean), with the given number of pages per mapping. */
+    synchronized void setMemoryMapped(boolean mapped, int pagesPerMapping) {
+        this.mapping = null;
+        this.pagesPerMapping = mapped && !compressed ? pagesPerMapping : 0;
+    }
+
+    /** @return true if reads are served from memory mappings of the file */
+    public boolean isMemoryMapped() {
+        return pagesPerMapping > 0;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         HeapPageId pageId;
         HeapPage page = null;
-        RandomAccessFile randomAccessFile;
 
         try{
-            byte[] fileData = HeapPage.createEmptyPageData();
-            randomAccessFile = new RandomAccessFile(file, "r");
             pageId = new HeapPageId(pid.getTableId(), pid.pageNumber());
-            randomAccessFile.seek(pid.pageNumber()* Database.getBufferPool().getPageSize());
-            randomAccessFile.read(fileData);
+            Mapping m = isMemoryMapped() ? mappingFor(pid.pageNumber()) : null;
+            if (m != null) {
+                // the page reads straight from the mapping
+                ByteBuffer chunk = m.chunks[pid.pageNumber() / m.pagesPerMapping].asReadOnlyBuffer();
+                int offset = (pid.pageNumber() % m.pagesPerMapping) * pageSize;
+                chunk.limit(offset + pageSize);
+                chunk.position(offset);
+                return new HeapPage(pageId, chunk);
+            }
+            byte[] fileData = HeapPage.createEmptyPageData(pageSize);
+            read(ByteBuffer.wrap(fileData), (long) pid.pageNumber() * pageSize);
             page = new HeapPage(pageId, fileData);
 
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -90,10 +261,475 @@ public class HeapFile implements DbFile {
         return page;
     }
 
+    /**
+     * Starts reading the specified page with an asynchronous read, so that
+     * no thread waits for the I/O. The page is built over the data just
+     * read on the thread that completes the read. Memory-mapped files are
+     * read right away. Files in direct I/O mode read with readPage() on the
+     * common pool, since the asynchronous channel would go through the page
+     * cache, and so do compressed files and subclasses overriding readPage().
+     */
+    @Override
+    public CompletableFuture<Page> readPageAsync(final PageId pid) {
+        final CompletableFuture<Page> result = new CompletableFuture<Page>();
+        if (isMemoryMapped()) {
+            complete(result, pid, readPage(pid));
+            return result;
+        }
+        if (directIo || compressed || readPageOverridden) {
+            return DbFile.super.readPageAsync(pid);
+        }
+        final byte[] data = new byte[pageSize];
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        final long position = (long) pid.pageNumber() * pageSize;
+        final AsynchronousFileChannel ch;
+        try {
+            ch = asyncChannel();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        ch.read(buf, position, null, new CompletionHandler<Integer, Void>() {
+            public void completed(Integer n, Void attachment) {
+                if (n >= 0 && buf.hasRemaining()) {
+                    ch.read(buf, position + buf.position(), null, this);
+                    return;
+                }
+                try {
+                    result.complete(new HeapPage(new HeapPageId(pid.getTableId(), pid.pageNumber()),
+                            ByteBuffer.wrap(data)));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private static void complete(CompletableFuture<Page> result, PageId pid, Page page) {
+        if (page == null) {
+            result.completeExceptionally(new DbException("unable to read page "
+                    + pid.pageNumber() + " of table " + pid.getTableId()));
+        } else {
+            result.complete(page);
+        }
+    }
+
+    private synchronized AsynchronousFileChannel asyncChannel() throws IOException {
+        if (asyncChannel == null || !asyncChannel.isOpen()) {
+            asyncChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return asyncChannel;
+    }
+
+    /**
+     * Reads consecutive pages with a single read. Each page gets its own
+     * copy of its part of the data just read, so a page that stays in the
+     * buffer pool does not keep the whole read alive. Memory-mapped
+     * files, and subclasses overriding readPage(), build every page with
+     * readPage() instead, so such subclasses still see every page. Pages
+     * beyond the end of the file come back empty, as from readPage().
+     *
+     * @param firstPage the number of the first page to read
+     * @param count the number of pages to read
+     * @return the pages, in page order; an element is null if the page
+     *         could not be built
+     */
+    public List<Page> readPages(int firstPage, int count) throws IOException {
+        List<Page> pages = new ArrayList<Page>(count);
+        if (isMemoryMapped() || readPageOverridden) {
+            for (int i = 0; i < count; i++) {
+                pages.add(readPage(new HeapPageId(getId(), firstPage + i)));
+            }
+            return pages;
+        }
+        long bytes = (long) count * pageSize;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("cannot read " + count + " pages of " + pageSize
+                    + " bytes at once");
+        }
+        byte[] data = new byte[(int) bytes];
+        read(ByteBuffer.wrap(data), (long) firstPage * pageSize);
+        for (int i = 0; i < count; i++) {
+            byte[] page = Arrays.copyOfRange(data, i * pageSize, (i + 1) * pageSize);
+            pages.add(new HeapPage(new HeapPageId(getId(), firstPage + i), ByteBuffer.wrap(page)));
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
-        // not necessary for lab1
+        write(ByteBuffer.wrap(page.getPageData()), (long) page.getId().pageNumber() * pageSize);
+        countPages(page.getId().pageNumber() + 1);
+    }
+
+    /**
+     * Writes the given pages, merging each run of pages that are adjacent in
+     * the file into a single write.
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        int start = 0;
+        while (start < pages.size()) {
+            int end = start + 1;
+            int first = pages.get(start).getId().pageNumber();
+            while (end < pages.size()
+                    && pages.get(end).getId().pageNumber() == first + (end - start)) {
+                end++;
+            }
+            byte[] run = new byte[(end - start) * pageSize];
+            for (int i = start; i < end; i++) {
+                System.arraycopy(pages.get(i).getPageData(), 0, run, (i - start) * pageSize, pageSize);
+            }
+            write(ByteBuffer.wrap(run), (long) first * pageSize);
+            countPages(first + (end - start));
+            start = end;
+        }
+    }
+
+    /**
+     * @return mappings covering the given page, extended if the file has
+     *         grown past the current ones, or null if the page lies beyond
+     *         the end of the file
+     */
+    private Mapping mappingFor(int pageNo) throws IOException {
+        Mapping m = mapping;
+        if (m == null || pageNo >= m.pages) {
+            m = remap();
+        }
+        return m != null && pageNo < m.pages ? m : null;
+    }
+
+    /**
+     * Maps the pages added to the file since the last call, keeping the
+     * existing full mappings and replacing the last, partial one.
+     */
+    private synchronized Mapping remap() throws IOException {
+        int perMapping = pagesPerMapping;
+        if (perMapping == 0) {
+            return null;
+        }
+        FileChannel ch = channel(false);
+        int pages = (int) (ch.size() / pageSize);
+        Mapping old = mapping;
+        if (old != null && old.pages >= pages) {
+            return old;
+        }
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(pages + perMapping - 1) / perMapping];
+        int kept = old == null ? 0 : old.pages / perMapping;
+        if (kept > 0) {
+            System.arraycopy(old.chunks, 0, chunks, 0, kept);
+        }
+        for (int i = kept; i < chunks.length; i++) {
+            int first = i * perMapping;
+            chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, (long) first * pageSize,
+                    (long) Math.min(perMapping, pages - first) * pageSize);
+        }
+        mapping = new Mapping(chunks, perMapping, pages);
+        return mapping;
+    }
+
+    /**
+     * Closes the channel to the underlying file and saves the free space
+     * map, and the extent map of a compressed file, next to it. The
+     * HeapFile stays usable: the next read or write opens the file again.
+     * Catalog.clear() closes the files of the catalog.
+     */
+    public void close() {
+        FileChannel open;
+        AsynchronousFileChannel openAsync;
+        synchronized (this) {
+            open = channel;
+            channel = null;
+            writableChannel = null;
+            openAsync = asyncChannel;
+            asyncChannel = null;
+            mapping = null;
+            if (freeSpace != null) {
+                try {
+                    freeSpace.save(freeSpaceFile());
+                } catch (IOException e) {
+                    Debug.log("unable to save free space map of %s: %s", file, e.getMessage());
+                }
+                freeSpace = null;
+            }
+            if (store != null) {
+                try {
+                    store.save(extentMapFile());
+                } catch (IOException e) {
+                    Debug.log("unable to save extent map of %s: %s", file, e.getMessage());
+                }
+                store = null;
+            }
+        }
+        if (open != null) {
+            try {
+                open.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (openAsync != null) {
+            try {
+                openAsync.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Switches reads and writes of this file to direct I/O, which bypasses
+     * the OS page cache, so that pages cached in the buffer pool are not
+     * cached a second time by the OS and the pool owns the memory budget.
+     * Falls back to buffered I/O when the JDK or the file system does not
+     * support direct I/O, or when the page size is not a multiple of the
+     * file system's block size. Memory-mapped reads, see setMemoryMapped(),
+     * still go through the page cache. Compressed files always use
+     * buffered I/O, since their extents are not aligned to blocks.
+     *
+     * @return true if direct I/O is now in use
+     */
+    public synchronized boolean setDirectIo(boolean enable) {
+        boolean direct = false;
+        if (enable && !compressed && DirectIo.isAvailable()) {
+            try {
+                int block = DirectIo.blockSize(file.toPath());
+                if (block > 0 && pageSize % block == 0) {
+                    blockSize = block;
+                    direct = true;
+                } else {
+                    Debug.log("no direct I/O for %s: page size %d is not a multiple of block size %d",
+                            file, pageSize, block);
+                }
+            } catch (IOException e) {
+                Debug.log("no direct I/O for %s: %s", file, e.getMessage());
+            }
+        }
+        if (direct != directIo || channel == null) {
+            directIo = direct;
+            FileChannel open = channel;
+            channel = null;
+            writableChannel = null;
+            if (open != null) {
+                try {
+                    open.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                if (file.exists()) {
+                    channel(false);
+                }
+            } catch (IOException e) {
+                // reported by the next read or write
+            }
+        }
+        return directIo;
+    }
+
+    /** @return true if reads and writes of this file bypass the OS page cache */
+    public boolean isDirectIo() {
+        return directIo;
+    }
+
+    /**
+     * Returns the shared channel, opening it if needed. A read-only channel
+     * is reopened for writing on the first write; only writes create the
+     * file.
+     *
+     * @param write true if the channel is going to be written to
+     */
+    private FileChannel channel(boolean write) throws IOException {
+        FileChannel ch = write ? writableChannel : channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        return reopen(write);
+    }
+
+    private synchronized FileChannel reopen(boolean write) throws IOException {
+        FileChannel ch = write ? writableChannel : channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        FileChannel old = channel;
+        // keep a channel that can write writable when it is reopened for a read
+        boolean writable = write || (old != null && old == writableChannel);
+        Set<OpenOption> options = new HashSet<OpenOption>();
+        options.add(StandardOpenOption.READ);
+        if (writable) {
+            options.add(StandardOpenOption.CREATE);
+            options.add(StandardOpenOption.WRITE);
+        }
+        ch = null;
+        if (directIo) {
+            options.add(DirectIo.DIRECT);
+            try {
+                ch = FileChannel.open(file.toPath(), options);
+            } catch (IOException e) {
+                Debug.log("no direct I/O for %s: %s", file, e.getMessage());
+            } catch (UnsupportedOperationException e) {
+                Debug.log("no direct I/O for %s: %s", file, e.getMessage());
+            }
+            if (ch == null) {
+                options.remove(DirectIo.DIRECT);
+                directIo = false;
+            }
+        }
+        if (ch == null) {
+            ch = FileChannel.open(file.toPath(), options);
+        }
+        writableChannel = writable ? ch : null;
+        channel = ch;
+        if (old != null && old != ch) {
+            // readers still using it get a ClosedChannelException and retry
+            try {
+                old.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Returns the extent map of a compressed file, reading the one saved by
+     * close() if there is one, as freeSpace() does.
+     */
+    private synchronized CompressedPageStore store() throws IOException {
+        if (store == null) {
+            store = CompressedPageStore.open(new CompressedPageStore.Storage() {
+                public void read(ByteBuffer buf, long position) throws IOException {
+                    readChannel(buf, position);
+                }
+
+                public void write(ByteBuffer buf, long position) throws IOException {
+                    writeChannel(buf, position);
+                }
+
+                public long size() throws IOException {
+                    return file.exists() ? channel(false).size() : 0;
+                }
+
+                public void truncate(long size) throws IOException {
+                    channel(true).truncate(size);
+                }
+            }, pageSize, extentMapFile());
+        }
+        return store;
+    }
+
+    private File extentMapFile() {
+        return new File(file.getPath() + ".map");
+    }
+
+    /**
+     * Reads whole pages from the given page-aligned offset until buf is
+     * full or the file ends.
+     */
+    private void read(ByteBuffer buf, long position) throws IOException {
+        if (compressed) {
+            store().read(buf, (int) (position / pageSize));
+            return;
+        }
+        readChannel(buf, position);
+    }
+
+    /** Writes whole pages at the given page-aligned offset. */
+    private void write(ByteBuffer buf, long position) throws IOException {
+        if (compressed) {
+            store().write(buf, (int) (position / pageSize));
+            return;
+        }
+        writeChannel(buf, position);
+    }
+
+    /**
+     * Reads from the given offset until buf is full or the file ends. A
+     * channel closed under us because another thread was interrupted while
+     * using it, or because it was reopened for writing, is reopened once;
+     * our own interrupt is passed on. A file that does not exist yet reads
+     * as empty.
+     */
+    private void readChannel(ByteBuffer buf, long position) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                FileChannel ch;
+                try {
+                    ch = channel(false);
+                } catch (NoSuchFileException e) {
+                    return;
+                }
+                if (directIo) {
+                    readDirect(ch, buf, position);
+                    return;
+                }
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, position + buf.position()) < 0) {
+                        return;
+                    }
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Writes all of buf at the given offset; see readChannel() for closed channels. */
+    private void writeChannel(ByteBuffer buf, long position) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                FileChannel ch = channel(true);
+                if (directIo) {
+                    writeDirect(ch, buf, position);
+                    return;
+                }
+                while (buf.hasRemaining()) {
+                    ch.write(buf, position + buf.position());
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Reads through an aligned buffer, as direct I/O requires. */
+    private void readDirect(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        ByteBuffer aligned = DirectIo.buffer(buf.remaining(), blockSize);
+        while (aligned.hasRemaining()) {
+            if (ch.read(aligned, position + aligned.position()) < 0) {
+                break;
+            }
+        }
+        aligned.flip();
+        buf.put(aligned);
+    }
+
+    /** Writes through an aligned buffer, as direct I/O requires. */
+    private void writeDirect(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        ByteBuffer aligned = DirectIo.buffer(buf.remaining(), blockSize);
+        aligned.put(buf.duplicate());
+        aligned.flip();
+        while (aligned.hasRemaining()) {
+            ch.write(aligned, position + aligned.position());
+        }
+        buf.position(buf.limit());
     }
 
     /**
@@ -101,25 +737,260 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        int fileSize = (int) file.length();
-        int pageSize = Database.getBufferPool().getPageSize();
-        return fileSize/pageSize;
+        int pages = pageCount.get();
+        if (pages < 0) {
+            int stored;
+            if (compressed) {
+                try {
+                    stored = store().numPages();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                stored = (int) (file.length() / pageSize);
+            }
+            pageCount.compareAndSet(-1, stored);
+            pages = pageCount.get();
+        }
+        return pages;
     }
 
-    // see DbFile.java for javadocs
+    /** Raises the page count to include the first pages pages of the file. */
+    private void countPages(int pages) {
+        int current = numPages();
+        while (current < pages && !pageCount.compareAndSet(current, pages)) {
+            current = pageCount.get();
+        }
+    }
+
+    /**
+     * Returns the free space map of this file, reading the one saved by
+     * close() if there is one. The saved map is deleted once read, so a
+     * crash never leaves a map behind that later changes made stale.
+     */
+    synchronized FreeSpaceMap freeSpace() {
+        if (freeSpace == null) {
+            File saved = freeSpaceFile();
+            if (saved.exists()) {
+                try {
+                    freeSpace = FreeSpaceMap.load(saved);
+                } catch (IOException e) {
+                    Debug.log("ignoring free space map %s: %s", saved, e.getMessage());
+                }
+                saved.delete();
+            }
+            if (freeSpace == null) {
+                freeSpace = new FreeSpaceMap();
+            }
+        }
+        return freeSpace;
+    }
+
+    private File freeSpaceFile() {
+        return new File(file.getPath() + ".fsm");
+    }
+
+    /**
+     * Inserts a tuple into the first page the free space map says may have
+     * room. The page is locked exclusively from the start, since upgrading
+     * a shared lock deadlocks two inserts into the same page; a page found
+     * full has its lock dropped right away. The file is extended by an
+     * empty page only when no page has room.
+     *
+     * @see DbFile#insertTuple
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        return null;
-        // not necessary for lab1
+        if (!tupleDesc.equals(t.getTupleDesc())) {
+            throw new DbException("tuple does not match the schema of table " + getId());
+        }
+        BufferPool pool = Database.getBufferPool();
+        FreeSpaceMap map = freeSpace();
+        while (true) {
+            int pageNo = map.findPage(numPages());
+            if (pageNo < 0) {
+                extend(map);
+                continue;
+            }
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            boolean locked = pool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            int free = page.getNumEmptySlots();
+            if (free == 0) {
+                map.update(pageNo, 0);
+                if (!locked) {
+                    // only the header was looked at: nothing to keep isolated
+                    pool.releasePage(tid, pid);
+                }
+                continue;
+            }
+            page.insertTuple(t);
+            map.update(pageNo, free - 1);
+            return new ArrayList<Page>(Arrays.asList(page));
+        }
+    }
+
+    /** Appends an empty page to the file unless another insert just did. */
+    private void extend(FreeSpaceMap map) throws IOException {
+        synchronized (appendLock) {
+            int pages = numPages();
+            if (map.findPage(pages) >= 0) {
+                return;
+            }
+            write(ByteBuffer.wrap(HeapPage.createEmptyPageData(pageSize)), (long) pages * pageSize);
+            countPages(pages + 1);
+            map.update(pages, slotsPerPage());
+        }
+    }
+
+    private int slotsPerPage() {
+        return (pageSize * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+
+    /**
+     * Appends tuples to this file without going through the buffer pool,
+     * the lock manager or per-page logging. Tuples are packed into full
+     * pages in memory, which are appended with large sequential writes.
+     * Once they are on disk the log gets a single EXTENT record for them.
+     * <p>
+     * Readers do not see the new pages until the load has completed, and
+     * then see all of them; a load that fails truncates them away. Inserts
+     * that need to extend the file wait for the load to finish.
+     *
+     * @param tid the transaction loading the tuples
+     * @param tuples the tuples to append; opened and closed by this method
+     * @return the number of tuples appended
+     */
+    public int bulkLoad(TransactionId tid, DbIterator tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!tupleDesc.equals(tuples.getTupleDesc())) {
+            throw new DbException("tuples do not match the schema of table " + getId());
+        }
+        synchronized (appendLock) {
+            int firstPage = numPages();
+            long start = (long) firstPage * pageSize;
+            int slots = slotsPerPage();
+            byte[] batch = new byte[BULK_WRITE_PAGES * pageSize];
+            int batched = 0;
+            int pages = 0;
+            int inPage = 0;
+            int loaded = 0;
+            HeapPage page = null;
+            boolean complete = false;
+            tuples.open();
+            try {
+                while (tuples.hasNext()) {
+                    if (page == null) {
+                        page = new HeapPage(new HeapPageId(getId(), firstPage + pages),
+                                HeapPage.createEmptyPageData(pageSize));
+                    }
+                    page.insertTuple(tuples.next());
+                    loaded++;
+                    if (++inPage == slots) {
+                        System.arraycopy(page.getPageData(), 0, batch, batched * pageSize, pageSize);
+                        page = null;
+                        inPage = 0;
+                        pages++;
+                        if (++batched == BULK_WRITE_PAGES) {
+                            write(ByteBuffer.wrap(batch), start + (long) (pages - batched) * pageSize);
+                            batched = 0;
+                        }
+                    }
+                }
+                if (page != null) {
+                    System.arraycopy(page.getPageData(), 0, batch, batched * pageSize, pageSize);
+                    pages++;
+                    batched++;
+                }
+                if (batched > 0) {
+                    write(ByteBuffer.wrap(batch, 0, batched * pageSize),
+                            start + (long) (pages - batched) * pageSize);
+                }
+                if (pages > 0) {
+                    channel(true).force(false);
+                    Database.getLogFile().logExtent(tid, getId(), firstPage, pages);
+                    FreeSpaceMap map = freeSpace();
+                    for (int i = 0; i < pages; i++) {
+                        map.update(firstPage + i, i < pages - 1 || inPage == 0 ? 0 : slots - inPage);
+                    }
+                    countPages(firstPage + pages);
+                }
+                complete = true;
+                return loaded;
+            } finally {
+                if (!complete) {
+                    try {
+                        if (compressed) {
+                            store().truncate(firstPage);
+                        } else {
+                            channel(true).truncate(start);
+                        }
+                    } catch (IOException e) {
+                        // do not hide the exception that failed the load
+                        Debug.log("unable to truncate %s after a failed bulk load: %s",
+                                file, e.getMessage());
+                    }
+                }
+                tuples.close();
+            }
+        }
+    }
+
+    /** As bulkLoad(TransactionId, DbIterator), for tuples from an Iterator. */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        return bulkLoad(tid, new IteratorSource(tupleDesc, tuples));
+    }
+
+    /** Adapts an Iterator, which can be read only once, to a DbIterator. */
+    private static class IteratorSource implements DbIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private final transient Iterator<Tuple> tuples;
+
+        IteratorSource(TupleDesc td, Iterator<Tuple> tuples) {
+            this.td = td;
+            this.tuples = tuples;
+        }
+
+        public void open() {
+        }
+
+        public boolean hasNext() {
+            return tuples.hasNext();
+        }
+
+        public Tuple next() {
+            return tuples.next();
+        }
+
+        public void rewind() throws DbException {
+            throw new DbException("tuples can only be read once");
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+        }
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        return null;
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("tuple is not stored in table " + getId());
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        freeSpace().update(page.getId().pageNumber(), page.getNumEmptySlots());
+        return new ArrayList<Page>(Arrays.asList(page));
     }
 
     // see DbFile.java for javadocs
@@ -129,11 +1000,96 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(this ,tid);
     }
 
+    // see DbFile.java for javadocs
+    public Stream<Tuple> stream(TransactionId tid) {
+        return StreamSupport.stream(new PageSpliterator(tid, 0, numPages()), false);
+    }
+
+    /**
+     * Returns a parallel stream over the tuples of this file, whose page
+     * range is split in halves among the threads of the stream. All of
+     * them lock pages under the given transaction, which the lock manager
+     * allows, counting each page once however many threads ask for it.
+     */
+    public Stream<Tuple> parallelStream(TransactionId tid) {
+        return StreamSupport.stream(new PageSpliterator(tid, 0, numPages()), true);
+    }
+
+    /**
+     * Spliterator over the tuples of a range of pages, split by dividing the
+     * pages not read yet. Each page is pinned only while its tuples are
+     * copied out. The number of tuples is not known without reading the
+     * pages, so the size is estimated from the number of slots.
+     */
+    private class PageSpliterator implements Spliterator<Tuple> {
+        private final TransactionId tid;
+        private int nextPage;
+        private int endPage;
+        /** The remaining tuples of the page read last, or null */
+        private Iterator<Tuple> current;
+
+        PageSpliterator(TransactionId tid, int firstPage, int endPage) {
+            this.tid = tid;
+            this.nextPage = firstPage;
+            this.endPage = endPage;
+        }
+
+        public boolean tryAdvance(Consumer<? super Tuple> action) {
+            while (current == null || !current.hasNext()) {
+                if (nextPage >= endPage) {
+                    return false;
+                }
+                current = pageTuples(nextPage++);
+            }
+            action.accept(current.next());
+            return true;
+        }
+
+        public Spliterator<Tuple> trySplit() {
+            int remaining = endPage - nextPage;
+            if (remaining < 2) {
+                return null;
+            }
+            int mid = nextPage + remaining / 2;
+            // the prefix keeps the rest of the current page to preserve order
+            PageSpliterator prefix = new PageSpliterator(tid, nextPage, mid);
+            prefix.current = current;
+            current = null;
+            nextPage = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return (long) (endPage - nextPage) * slotsPerPage();
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        private Iterator<Tuple> pageTuples(int pageNo) {
+            BufferPool pool = Database.getBufferPool();
+            PageId pid = new HeapPageId(getId(), pageNo);
+            try {
+                HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_ONLY);
+                return page.iterator();
+            } catch (DbException e) {
+                throw new UncheckedDbException(e);
+            } catch (TransactionAbortedException e) {
+                throw new UncheckedDbException(e);
+            }
+        }
+    }
+
     class HeapFileIterator implements DbFileIterator {
         private HeapFile heapFile;
         private TransactionId transactionId;
         private Iterator<Tuple> iterator;
         private Integer currentPage;
+        private BufferRing ring;
+        private ReadAhead readAhead;
+        /** The page the tuple iterator reads from, pinned until the next page or close() */
+        private PageId pinnedPage;
 
         public HeapFileIterator(HeapFile heapFile, TransactionId tId){
             this.heapFile = heapFile;
@@ -146,6 +1102,10 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             currentPage = 0;
+            BufferPool pool = Database.getBufferPool();
+            int pages = numPages();
+            ring = pool.getScanRing(pages);
+            readAhead = new ReadAhead(pool, heapFile.getId(), pages, ring);
             iterator = tupleIterator(currentPage);
         }
 
@@ -185,15 +1145,34 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpinCurrentPage();
             iterator = null;
             currentPage = null;
+            readAhead = null;
+            if (ring != null) {
+                Database.getBufferPool().releaseRing(ring);
+                ring = null;
+            }
         }
 
         public Iterator<Tuple> tupleIterator(int pageNo) throws TransactionAbortedException, DbException {
             PageId heapPageId = new HeapPageId(heapFile.getId(), pageNo);
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_ONLY);
+            // done with the previous page; unpin it first so a full ring can recycle it
+            unpinCurrentPage();
+            if (readAhead != null) {
+                readAhead.onAccess(pageNo);
+            }
+            HeapPage heapPage = (HeapPage) Database.getBufferPool().pinPage(transactionId, heapPageId, Permissions.READ_ONLY, ring);
+            pinnedPage = heapPageId;
             return heapPage.iterator();
         }
+
+        private void unpinCurrentPage() {
+            if (pinnedPage != null) {
+                Database.getBufferPool().unpinPage(transactionId, pinnedPage);
+                pinnedPage = null;
+            }
+        }
     }
 
 }
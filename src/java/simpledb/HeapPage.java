@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -16,49 +17,72 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
     final int numSlots;
 
+    /** Size of this page in bytes, that of the data it was created from */
+    private final int pageSize;
+
+    /**
+     * The serialized contents of this page. Tuples are decoded from it on
+     * demand, so a cached page does not hold an object per tuple. It is
+     * either a heap array or, while the page is cached in an off-heap
+     * buffer pool, a view over the page's slot (protected by this).
+     */
+    private ByteBuffer data;
+
+    /** Before image, or null if the page is unchanged since setBeforeImage() */
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    private volatile TransactionId dirtier;
+
+    /** No slot below this one is free; where insertTuple() starts looking */
+    private int freeSlotHint;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
-     * <p> where tuple size is the size of tuples in this
+     *          floor((page size*8) / (tuple size * 8 + 1))
+     * <p> where page size is the length of data, which is the page size of
+     * the table's file, and tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * The page takes ownership of data; callers must not modify the array
+     * afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see DbFile#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over the bytes between the position and the limit
+     * of a buffer, e.g. a read-only view of a memory-mapped file, without
+     * copying them. A read-only buffer is copied to the heap when the page
+     * is first modified. The bytes must not change while the page uses
+     * them.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = data.remaining();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data.slice();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
+        this.data.duplicate().get(header);
         setBeforeImage();
     }
 
@@ -67,7 +91,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {
         // some code goes here
-        return (BufferPool.getPageSize()*8)/(td.getSize()*8+1);
+        return (pageSize*8)/(td.getSize()*8+1);
 
     }
 
@@ -90,6 +114,11 @@ public class HeapPage implements Page {
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null) {
+                    // not modified since the before image was taken; copy
+                    // while holding the lock so no modification can start
+                    oldDataRef = getPageData();
+                }
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -100,10 +129,64 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Makes the current contents of this page its before image. The copy is
+     * deferred until the page is next modified, see preserveBeforeImage().
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Copies the current contents aside as the before image unless one was
+     * already saved. Must be called before this page is modified.
+     */
+    void preserveBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
+    /** @return the size of this page in bytes */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Moves the contents of this page into the given buffer, typically an
+     * off-heap buffer pool slot, which then backs the page until detach()
+     * is called. Nothing happens if the buffer is too small.
+     *
+     * @return true if the page now lives in the buffer
+     */
+    synchronized boolean moveTo(ByteBuffer slot) {
+        if (slot.capacity() < data.capacity()) {
+            return false;
+        }
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        ByteBuffer dst = slot.duplicate();
+        dst.clear();
+        dst.put(src);
+        data = slot;
+        return true;
+    }
+
+    /**
+     * Copies the contents of this page back onto the heap so the buffer
+     * given to moveTo() can be reused for another page, so the page no
+     * longer reads from a file mapping, or so it no longer keeps a larger
+     * array it is a part of alive.
+     */
+    synchronized void detach() {
+        if (!data.hasArray() || data.arrayOffset() != 0 || data.array().length != data.capacity()) {
+            data = ByteBuffer.wrap(getPageData());
         }
     }
 
@@ -116,30 +199,18 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decodes the tuple in a used slot straight from the page's buffer.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
+    private synchronized Tuple readTuple(int slotId) throws NoSuchElementException {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        int offset = header.length + slotId * td.getSize();
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(data, offset);
                 t.setField(j, f);
+                offset += td.getFieldType(j).getLen();
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
@@ -160,65 +231,12 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        byte[] bytes = new byte[pageSize];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(bytes, 0, Math.min(bytes.length, src.remaining()));
+        return bytes;
     }
 
     /**
@@ -231,8 +249,25 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generates a byte array corresponding to an empty HeapPage of the
+     * given size.
+     *
+     * @param pageSize the page size of the file the page belongs to
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
+    }
+
+    /** @return the page's buffer, first copied to the heap if it is read-only */
+    private synchronized ByteBuffer writableData() {
+        if (data.isReadOnly()) {
+            data = ByteBuffer.wrap(getPageData());
+        }
+        return data;
     }
 
     /**
@@ -244,7 +279,18 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on page " + pid.pageNumber());
+        }
+        int slot = rid.tupleno();
+        if (!isSlotUsed(slot)) {
+            throw new DbException("slot " + slot + " of page " + pid.pageNumber() + " is already empty");
+        }
+        preserveBeforeImage();
+        markSlotUsed(slot, false);
+        t.setRecordId(null);
+        freeSlotHint = Math.min(freeSlotHint, slot);
     }
 
     /**
@@ -256,7 +302,41 @@ public class HeapPage implements Page {
      */
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
-        // not necessary for lab1
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple does not match the schema of table " + pid.getTableId());
+        }
+        for (int i = freeSlotHint; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                preserveBeforeImage();
+                writeTuple(i, t);
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                freeSlotHint = i + 1;
+                return;
+            }
+        }
+        freeSlotHint = numSlots;
+        throw new DbException("page " + pid.pageNumber() + " is full");
+    }
+
+    /** Serializes a tuple into the given slot. */
+    private void writeTuple(int slot, Tuple t) throws DbException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(bytes);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("unable to serialize tuple: " + e.getMessage());
+        }
+        synchronized (this) {
+            ByteBuffer dst = writableData().duplicate();
+            dst.clear();
+            dst.position(header.length + slot * td.getSize());
+            dst.put(bytes.toByteArray(), 0, td.getSize());
+        }
     }
 
     /**
@@ -265,7 +345,7 @@ public class HeapPage implements Page {
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
-	// not necessary for lab1
+        dirtier = dirty ? tid : null;
     }
 
     /**
@@ -273,8 +353,7 @@ public class HeapPage implements Page {
      */
     public TransactionId isDirty() {
         // some code goes here
-	// Not necessary for lab1
-        return null;
+        return dirtier;
     }
 
     /**
@@ -309,22 +388,52 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
-        // not necessary for lab1
+        int headerIndex = i / 8;
+        int mask = 0x1 << (i % 8);
+        synchronized (this) {
+            header[headerIndex] = (byte) (value ? header[headerIndex] | mask : header[headerIndex] & ~mask);
+            writableData().put(headerIndex, header[headerIndex]);
+        }
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * Tuples are decoded one at a time from the page's buffer as the
+     * iterator advances; the page is not copied.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList = new ArrayList<Tuple>();
-        for(int i=0; i<tuples.length; i++){
-            if(isSlotUsed(i)){
-                tupleList.add(tuples[i]);
+        return new Iterator<Tuple>() {
+            /** Next slot to look at */
+            private int slot = nextUsedSlot(0);
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (slot >= numSlots) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = readTuple(slot);
+                slot = nextUsedSlot(slot + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
+        };
+    }
+
+    private int nextUsedSlot(int from) {
+        int i = from;
+        while (i < numSlots && !isSlotUsed(i)) {
+            i++;
         }
-        return tupleList.iterator();
+        return i;
     }
 
 }
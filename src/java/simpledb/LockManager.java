@@ -0,0 +1,500 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * Shared/exclusive locks on pages, held until the owning transaction
+ * completes (strict two-phase locking).
+ * <p>
+ * Each page has a lock word counting its shared holders, or -1 while it is
+ * locked exclusively, so taking or releasing an uncontended lock is a
+ * single compare-and-set and readers of the same page never block each
+ * other. A transaction that cannot get a lock parks until a holder
+ * releases it.
+ * <p>
+ * Deadlocks are found by detectDeadlocks(), which builds the waits-for
+ * graph from the lock table and aborts the youngest transaction of every
+ * cycle. A waiter runs it itself once it has been parked for
+ * DETECTION_DELAY_MILLIS, and startDetector() can run it periodically on a
+ * background thread as well. An optional lock timeout remains as a last
+ * resort.
+ * <p>
+ * Besides the lock words, every transaction has a private table of the
+ * locks it holds, which is what holdsLock() and releaseAll() use. Several
+ * threads may work for one transaction: a lock word is only changed while
+ * the transaction's entry for the page is being updated, so threads
+ * asking for the same lock take it once between them, and each waiting
+ * thread is known to deadlock detection on its own. A lock
+ * word that becomes free with nobody waiting is retired and dropped from
+ * the lock table, so the table only holds pages that are locked;
+ * requests that find a retired word look it up again.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Default time a transaction may wait for a lock before it is aborted; 0 for no limit */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 0;
+
+    /** Time a waiter stays parked before it looks for a deadlock itself */
+    public static final long DETECTION_DELAY_MILLIS = 50;
+
+    private static final int EXCLUSIVE = -1;
+
+    /** State of a lock that has been dropped from the lock table */
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    private static class PageLock {
+        /** Number of shared holders, EXCLUSIVE, or RETIRED */
+        final AtomicInteger state = new AtomicInteger();
+        volatile TransactionId owner;
+        final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+    }
+
+    /** A thread blocked on a lock on behalf of a transaction */
+    private static class Waiter {
+        final TransactionId tid;
+        final Thread thread;
+        final PageId pid;
+        final boolean exclusive;
+        volatile boolean victim;
+
+        Waiter(TransactionId tid, Thread thread, PageId pid, boolean exclusive) {
+            this.tid = tid;
+            this.thread = thread;
+            this.pid = pid;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> locks;
+
+    /** Locks held by each transaction, true for exclusive ones */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Boolean>> held;
+
+    /** Threads currently blocked, by the transaction they work for */
+    private final ConcurrentHashMap<TransactionId, Set<Waiter>> waiting;
+
+    private final long timeoutNanos;
+
+    private final LongAdder lockWaits = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+
+    private Thread detector;
+
+    public LockManager() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis how long a transaction may wait for a lock
+     *        before it is aborted
+     */
+    public LockManager(long timeoutMillis) {
+        this.locks = new ConcurrentHashMap<PageId, PageLock>();
+        this.held = new ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Boolean>>();
+        this.waiting = new ConcurrentHashMap<TransactionId, Set<Waiter>>();
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Acquires a lock on the specified page, waiting if another transaction
+     * holds a conflicting one. A transaction holding a shared lock gets an
+     * exclusive one once it is the only holder left.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param exclusive true for an exclusive (write) lock
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         break a deadlock, the lock timeout expired, or the thread was
+     *         interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException {
+        ConcurrentHashMap<PageId, Boolean> mine = locksOf(tid);
+        Boolean current = mine.get(pid);
+        if (current != null && (current || !exclusive)) {
+            return;
+        }
+        while (true) {
+            PageLock lock = lockFor(pid);
+            if (grant(mine, pid, lock, tid, exclusive)
+                    || await(mine, pid, lock, tid, exclusive)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the lock for the transaction unless it already holds it in the
+     * requested mode. The check, the compare-and-set and the update of the
+     * transaction's table happen atomically for the page, so two threads
+     * of one transaction never both count themselves as holders.
+     *
+     * @return true if the transaction now holds the lock
+     */
+    private static boolean grant(ConcurrentHashMap<PageId, Boolean> mine, PageId pid,
+            final PageLock lock, final TransactionId tid, final boolean exclusive) {
+        final boolean[] granted = new boolean[1];
+        mine.compute(pid, new BiFunction<PageId, Boolean, Boolean>() {
+            public Boolean apply(PageId pid, Boolean current) {
+                if (current != null && (current || !exclusive)) {
+                    granted[0] = true;
+                    return current;
+                }
+                if (tryAcquire(lock, tid, exclusive, current != null)) {
+                    granted[0] = true;
+                    return exclusive;
+                }
+                return current;
+            }
+        });
+        return granted[0];
+    }
+
+    /**
+     * Releases the lock a transaction holds on a page, if any. Calling
+     * this before the transaction completes breaks two-phase locking.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        if (mine == null) {
+            return;
+        }
+        Boolean exclusive = mine.remove(pid);
+        if (exclusive != null) {
+            unlock(pid, locks.get(pid), exclusive);
+        }
+    }
+
+    /** Releases every lock held by the specified transaction. */
+    public void releaseAll(TransactionId tid) {
+        waiting.remove(tid);
+        Map<PageId, Boolean> mine = held.remove(tid);
+        if (mine == null) {
+            return;
+        }
+        for (Map.Entry<PageId, Boolean> e : mine.entrySet()) {
+            unlock(e.getKey(), locks.get(e.getKey()), e.getValue());
+        }
+    }
+
+    /** @return true if the transaction holds a lock on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        return mine != null && mine.containsKey(pid);
+    }
+
+    /** @return true if the transaction holds an exclusive lock on the page */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        return mine != null && Boolean.TRUE.equals(mine.get(pid));
+    }
+
+    /** @return the pages on which the transaction holds locks */
+    public List<PageId> lockedPages(TransactionId tid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        return mine == null ? new ArrayList<PageId>() : new ArrayList<PageId>(mine.keySet());
+    }
+
+    private ConcurrentHashMap<PageId, Boolean> locksOf(TransactionId tid) {
+        ConcurrentHashMap<PageId, Boolean> mine = held.get(tid);
+        if (mine == null) {
+            mine = new ConcurrentHashMap<PageId, Boolean>();
+            ConcurrentHashMap<PageId, Boolean> raced = held.putIfAbsent(tid, mine);
+            if (raced != null) {
+                mine = raced;
+            }
+        }
+        return mine;
+    }
+
+    /** @return the set the transaction's blocked threads register in; dropped by releaseAll() */
+    private Set<Waiter> waitersOf(TransactionId tid) {
+        Set<Waiter> waiters = waiting.get(tid);
+        if (waiters == null) {
+            waiters = Collections.newSetFromMap(new ConcurrentHashMap<Waiter, Boolean>());
+            Set<Waiter> raced = waiting.putIfAbsent(tid, waiters);
+            if (raced != null) {
+                waiters = raced;
+            }
+        }
+        return waiters;
+    }
+
+    private PageLock lockFor(PageId pid) {
+        while (true) {
+            PageLock lock = locks.get(pid);
+            if (lock == null) {
+                lock = new PageLock();
+                PageLock raced = locks.putIfAbsent(pid, lock);
+                if (raced == null) {
+                    return lock;
+                }
+                lock = raced;
+            }
+            if (lock.state.get() != RETIRED) {
+                return lock;
+            }
+            // retired but not removed yet by its last holder
+            locks.remove(pid, lock);
+        }
+    }
+
+    /** @return the number of pages with an entry in the lock table */
+    int numLockEntries() {
+        return locks.size();
+    }
+
+    private static boolean tryAcquire(PageLock lock, TransactionId tid,
+            boolean exclusive, boolean upgrade) {
+        AtomicInteger state = lock.state;
+        if (exclusive) {
+            // an upgrading holder counts itself as the single shared holder
+            if (!state.compareAndSet(upgrade ? 1 : 0, EXCLUSIVE)) {
+                return false;
+            }
+            lock.owner = tid;
+            return true;
+        }
+        int s = state.get();
+        while (s != EXCLUSIVE && s != RETIRED) {
+            if (state.compareAndSet(s, s + 1)) {
+                return true;
+            }
+            s = state.get();
+        }
+        return false;
+    }
+
+    /**
+     * Waits until the lock can be taken.
+     *
+     * @return false if the lock was retired meanwhile and must be looked up again
+     */
+    private boolean await(ConcurrentHashMap<PageId, Boolean> mine, PageId pid, PageLock lock,
+            TransactionId tid, boolean exclusive) throws TransactionAbortedException {
+        Thread me = Thread.currentThread();
+        Waiter waiter = new Waiter(tid, me, pid, exclusive);
+        long start = System.nanoTime();
+        long detectAt = start + TimeUnit.MILLISECONDS.toNanos(DETECTION_DELAY_MILLIS);
+        Set<Waiter> waiters = waitersOf(tid);
+        waiters.add(waiter);
+        lock.waiters.add(me);
+        try {
+            // re-check after queueing so a release in between is not missed
+            while (!grant(mine, pid, lock, tid, exclusive)) {
+                if (lock.state.get() == RETIRED) {
+                    return false;
+                }
+                long now = System.nanoTime();
+                if (waiter.victim || Thread.interrupted()
+                        || (timeoutNanos > 0 && now - start >= timeoutNanos)) {
+                    throw new TransactionAbortedException();
+                }
+                if (now >= detectAt) {
+                    detectDeadlocks();
+                    detectAt = now + TimeUnit.MILLISECONDS.toNanos(DETECTION_DELAY_MILLIS);
+                    continue;
+                }
+                LockSupport.parkNanos(this, detectAt - now);
+            }
+            return true;
+        } finally {
+            lock.waiters.remove(me);
+            waiters.remove(waiter);
+            lockWaits.increment();
+            lockWaitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Looks for cycles in the waits-for graph and aborts the youngest
+     * transaction, i.e. the one with the largest id, of every cycle found.
+     * The victims' pending lock requests throw TransactionAbortedException;
+     * it is up to their callers to complete them with an abort.
+     *
+     * @return the number of transactions aborted
+     */
+    public synchronized int detectDeadlocks() {
+        Map<TransactionId, Set<TransactionId>> waitsFor = waitsForGraph();
+        int aborted = 0;
+        while (true) {
+            List<TransactionId> cycle = findCycle(waitsFor);
+            if (cycle == null) {
+                return aborted;
+            }
+            TransactionId youngest = cycle.get(0);
+            for (TransactionId tid : cycle) {
+                if (tid.getId() > youngest.getId()) {
+                    youngest = tid;
+                }
+            }
+            // count before waking the victim so its abort is never seen first
+            deadlocks.increment();
+            aborted++;
+            Set<Waiter> waiters = waiting.get(youngest);
+            if (waiters != null) {
+                for (Waiter waiter : waiters) {
+                    waiter.victim = true;
+                    LockSupport.unpark(waiter.thread);
+                }
+            }
+            waitsFor.remove(youngest);
+        }
+    }
+
+    /** @return for every blocked transaction, the transactions it waits for */
+    private Map<TransactionId, Set<TransactionId>> waitsForGraph() {
+        Map<PageId, List<Waiter>> waitedOn = new HashMap<PageId, List<Waiter>>();
+        Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+        for (Set<Waiter> waiters : waiting.values()) {
+            for (Waiter waiter : waiters) {
+                if (waiter.victim) {
+                    continue;
+                }
+                List<Waiter> onPage = waitedOn.get(waiter.pid);
+                if (onPage == null) {
+                    onPage = new ArrayList<Waiter>();
+                    waitedOn.put(waiter.pid, onPage);
+                }
+                onPage.add(waiter);
+                if (!waitsFor.containsKey(waiter.tid)) {
+                    waitsFor.put(waiter.tid, new HashSet<TransactionId>());
+                }
+            }
+        }
+        for (Map.Entry<TransactionId, ConcurrentHashMap<PageId, Boolean>> e : held.entrySet()) {
+            TransactionId holder = e.getKey();
+            for (Map.Entry<PageId, Boolean> lock : e.getValue().entrySet()) {
+                List<Waiter> onPage = waitedOn.get(lock.getKey());
+                if (onPage == null) {
+                    continue;
+                }
+                for (Waiter waiter : onPage) {
+                    // shared requests only conflict with an exclusive holder
+                    if (!waiter.tid.equals(holder) && (lock.getValue() || waiter.exclusive)) {
+                        waitsFor.get(waiter.tid).add(holder);
+                    }
+                }
+            }
+        }
+        return waitsFor;
+    }
+
+    /** @return the transactions of some cycle in the graph, or null if there is none */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> waitsFor) {
+        Set<TransactionId> done = new HashSet<TransactionId>();
+        for (TransactionId start : waitsFor.keySet()) {
+            List<TransactionId> cycle = findCycle(waitsFor, start, new ArrayList<TransactionId>(),
+                    new HashSet<TransactionId>(), done);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> waitsFor,
+            TransactionId tid, List<TransactionId> path, Set<TransactionId> onPath,
+            Set<TransactionId> done) {
+        if (onPath.contains(tid)) {
+            return new ArrayList<TransactionId>(path.subList(path.indexOf(tid), path.size()));
+        }
+        Set<TransactionId> next = waitsFor.get(tid);
+        if (next == null || done.contains(tid)) {
+            return null;
+        }
+        path.add(tid);
+        onPath.add(tid);
+        for (TransactionId holder : next) {
+            List<TransactionId> cycle = findCycle(waitsFor, holder, path, onPath, done);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        onPath.remove(tid);
+        done.add(tid);
+        return null;
+    }
+
+    /**
+     * Starts a daemon thread that runs detectDeadlocks() at the given
+     * interval, in addition to the detection done by waiters themselves.
+     */
+    public synchronized void startDetector(final long intervalMillis) {
+        if (detector != null) {
+            return;
+        }
+        detector = new Thread("simpledb-deadlock-detector") {
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    detectDeadlocks();
+                }
+            }
+        };
+        detector.setDaemon(true);
+        detector.start();
+    }
+
+    /** Stops the thread started by startDetector(), if any. */
+    public synchronized void stopDetector() {
+        if (detector != null) {
+            detector.interrupt();
+            detector = null;
+        }
+    }
+
+    /** @return the number of deadlock cycles broken so far */
+    public long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getLockWaitCount() {
+        return lockWaits.sum();
+    }
+
+    /** @return the total time lock requests spent waiting, in nanoseconds */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    private void unlock(PageId pid, PageLock lock, boolean exclusive) {
+        if (exclusive) {
+            lock.owner = null;
+            lock.state.set(0);
+        } else {
+            lock.state.decrementAndGet();
+        }
+        // a waiter queued after this check sees the retired word and looks again
+        if (lock.waiters.isEmpty() && lock.state.compareAndSet(0, RETIRED)) {
+            locks.remove(pid, lock);
+        }
+        if (!lock.waiters.isEmpty()) {
+            for (Thread waiter : lock.waiters) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
@@ -51,8 +51,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and EXTENT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -67,6 +67,10 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> EXTENT records describe pages appended to a table file by a bulk
+load instead of page images: an integer table id, the integer number of
+the first page appended and the integer number of pages.
+
 </ul>
 
 */
@@ -82,6 +86,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int EXTENT_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -218,6 +223,33 @@ public class LogFile {
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write an EXTENT record to disk for pages the specified tid
+        appended to a table, and force the log to disk. The pages
+        themselves must already be on disk.
+
+        @param tid The transaction that appended the pages
+        @param tableId The table the pages were appended to
+        @param firstPage The number of the first page appended
+        @param numPages The number of pages appended
+
+        @see HeapFile#bulkLoad
+    */
+    public synchronized void logExtent(TransactionId tid, int tableId,
+                                       int firstPage, int numPages)
+        throws IOException {
+        preAppend();
+        Debug.log("EXTENT " + tid.getId() + ", table " + tableId
+                  + ", pages " + firstPage + "+" + numPages);
+        raf.writeInt(EXTENT_RECORD);
+        raf.writeLong(tid.getId());
+        raf.writeInt(tableId);
+        raf.writeInt(firstPage);
+        raf.writeInt(numPages);
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+        force();
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -429,6 +461,11 @@ public class LogFile {
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
                     break;
+                case EXTENT_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    break;
                 }
 
                 //all xactions finish with a pointer
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD '93). The victim is
+ * the page whose K-th most recent access lies furthest in the past. Pages
+ * accessed fewer than K times count as infinitely old and go first, least
+ * recently used among them, so pages read once by a scan do not displace
+ * pages that are read repeatedly.
+ * <p>
+ * The access history of evicted pages is retained for a while, up to one
+ * entry per frame, so a page that comes back soon keeps its history.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    /** The K of LRU-2, the variant the paper recommends */
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        /** Logical times of the last K accesses, most recent first */
+        final long[] times;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void access(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        /** @return the time of the K-th most recent access, 0 if there were fewer */
+        long kth() {
+            return times[times.length - 1];
+        }
+
+        long last() {
+            return times[0];
+        }
+    }
+
+    /** Orders pages by K-th access, then by last access; the first is the victim */
+    private static final Comparator<History> BY_KTH_ACCESS = new Comparator<History>() {
+        public int compare(History a, History b) {
+            if (a.kth() != b.kth()) {
+                return a.kth() < b.kth() ? -1 : 1;
+            }
+            return Long.compare(a.last(), b.last());
+        }
+    };
+
+    private final int k;
+    private long clock;
+    private int maxRetained;
+
+    /** Histories of resident pages (protected by this) */
+    private final Map<PageId, History> resident = new HashMap<PageId, History>();
+
+    /** Resident pages in eviction order (protected by this) */
+    private final TreeSet<History> order = new TreeSet<History>(BY_KTH_ACCESS);
+
+    /** Histories of recently evicted pages, oldest first (protected by this) */
+    private final LinkedHashMap<PageId, History> retained = new LinkedHashMap<PageId, History>();
+
+    /**
+     * @param k the number of accesses remembered per page, at least 1
+     * @param capacity the number of frames in the buffer pool
+     */
+    public LruKPolicy(int k, int capacity) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        setCapacity(capacity);
+    }
+
+    public synchronized void onHit(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            order.remove(h);
+            h.access(++clock);
+            order.add(h);
+        }
+    }
+
+    public synchronized void onMiss(PageId pid) {
+        if (resident.containsKey(pid)) {
+            return;
+        }
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+        }
+        h.access(++clock);
+        resident.put(pid, h);
+        order.add(h);
+    }
+
+    public synchronized PageId chooseVictim(java.util.function.Predicate<PageId> evictable) {
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.test(h.pid)) {
+                it.remove();
+                resident.remove(h.pid);
+                retain(h);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void onRemove(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            order.remove(h);
+        }
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        maxRetained = Math.max(1, capacity);
+        trimRetained();
+    }
+
+    private void retain(History h) {
+        retained.put(h.pid, h);
+        trimRetained();
+    }
+
+    private void trimRetained() {
+        Iterator<PageId> oldest = retained.keySet().iterator();
+        while (retained.size() > maxRetained) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used replacement. Every hit moves the page to the most
+ * recent end of a single list under a lock, so this is the reference
+ * policy rather than the fastest one.
+ *
+ * @Threadsafe
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    /** Resident pages, least recently used first (protected by this) */
+    private final LinkedHashMap<PageId, Boolean> pages =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public synchronized void onHit(PageId pid) {
+        pages.get(pid);
+    }
+
+    public synchronized void onMiss(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized PageId chooseVictim(java.util.function.Predicate<PageId> evictable) {
+        Iterator<PageId> it = pages.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void onRemove(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public void setCapacity(int capacity) {
+        // LRU has no parameters that depend on the pool size
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PageArena is a number of page-sized slots in direct (off-heap) memory.
+ * BufferPool stores the images of cached pages here so that a large pool
+ * does not grow the Java heap or lengthen GC pauses.
+ * <p>
+ * Memory is reserved in chunks the first time one of their slots is used,
+ * so an arena for a large pool costs nothing until it fills up. The arena
+ * can be resized; shrinking it drops the chunks that lie entirely beyond
+ * the new number of slots.
+ *
+ * @Threadsafe
+ */
+public class PageArena {
+
+    /** Upper bound on the size of one direct buffer */
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+    /** A run of consecutive slots backed by one direct buffer */
+    private static class Chunk {
+        final int first;
+        final int count;
+        ByteBuffer buffer;
+
+        Chunk(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+    }
+
+    private final int slotSize;
+    private final int slotsPerChunk;
+    private int numSlots;
+
+    /** Chunks ordered by their first slot, covering at least numSlots slots (protected by this) */
+    private final List<Chunk> chunks;
+
+    /**
+     * Creates an arena of numSlots slots of slotSize bytes each.
+     *
+     * @param slotSize the number of bytes per slot, usually the page size
+     * @param numSlots the number of slots in the arena
+     */
+    public PageArena(int slotSize, int numSlots) {
+        if (slotSize <= 0 || numSlots < 0) {
+            throw new IllegalArgumentException("invalid arena of " + numSlots
+                    + " slots of " + slotSize + " bytes");
+        }
+        this.slotSize = slotSize;
+        this.slotsPerChunk = Math.max(1, MAX_CHUNK_BYTES / slotSize);
+        this.chunks = new ArrayList<Chunk>();
+        resize(numSlots);
+    }
+
+    /** @return the number of bytes in each slot */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /** @return the number of slots in this arena */
+    public synchronized int numSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Changes the number of slots. Views of slots that are dropped must no
+     * longer be in use.
+     *
+     * @param newNumSlots the new number of slots
+     */
+    public synchronized void resize(int newNumSlots) {
+        if (newNumSlots < 0) {
+            throw new IllegalArgumentException("invalid arena of " + newNumSlots + " slots");
+        }
+        while (!chunks.isEmpty() && chunks.get(chunks.size() - 1).first >= newNumSlots) {
+            chunks.remove(chunks.size() - 1);
+        }
+        int covered = chunks.isEmpty() ? 0 : last().first + last().count;
+        for (int first = covered; first < newNumSlots; first += slotsPerChunk) {
+            chunks.add(new Chunk(first, Math.min(slotsPerChunk, newNumSlots - first)));
+        }
+        numSlots = newNumSlots;
+    }
+
+    /**
+     * Returns a view over the specified slot. The view has its own position
+     * and limit and covers exactly slotSize bytes.
+     *
+     * @param slot the index of the slot, between 0 and numSlots() - 1
+     */
+    public synchronized ByteBuffer slot(int slot) {
+        if (slot < 0 || slot >= numSlots) {
+            throw new IndexOutOfBoundsException("slot " + slot + " of " + numSlots);
+        }
+        Chunk chunk = chunkOf(slot);
+        if (chunk.buffer == null) {
+            chunk.buffer = ByteBuffer.allocateDirect(chunk.count * slotSize);
+        }
+        ByteBuffer view = chunk.buffer.duplicate();
+        int offset = (slot - chunk.first) * slotSize;
+        view.limit(offset + slotSize);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /** @return the number of bytes of direct memory reserved so far */
+    public synchronized long reservedBytes() {
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.buffer != null) {
+                bytes += chunk.buffer.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    private Chunk last() {
+        return chunks.get(chunks.size() - 1);
+    }
+
+    private Chunk chunkOf(int slot) {
+        int lo = 0;
+        int hi = chunks.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (chunks.get(mid).first <= slot) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return chunks.get(lo);
+    }
+}
@@ -0,0 +1,337 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ParallelSeqScan reads a table like SeqScan, but on several threads. The
+ * pages of the table are split into morsels of MORSEL_PAGES consecutive
+ * pages, and workers on a ForkJoinPool claim the next unread morsel from a
+ * shared counter until none is left, so a worker that is done early simply
+ * reads more morsels.
+ * <p>
+ * Tuples come back either in no particular order, each morsel as soon as it
+ * has been read, or in the order a SeqScan would return them. Either way,
+ * at most WINDOW morsels are read ahead of the consumer, so a large table is
+ * not buffered in memory.
+ * <p>
+ * Workers lock the pages they read under the scan's transaction. The lock
+ * manager tracks each blocked worker on its own, so a deadlock through a
+ * worker is broken like any other, and the scan then fails with
+ * TransactionAbortedException rather than leaving close() waiting for it.
+ */
+public class ParallelSeqScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of consecutive pages read by one task */
+    static final int MORSEL_PAGES = 8;
+
+    /** Number of morsels that may be read ahead of the consumer */
+    private static final int WINDOW = 16;
+
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final String tableAlias;
+    private final boolean ordered;
+    private final transient ForkJoinPool pool;
+
+    private transient Morsels morsels;
+    private transient Iterator<Tuple> current;
+
+    /**
+     * Creates a parallel scan of a table running on the common pool.
+     *
+     * @param tid the transaction this scan is running as a part of
+     * @param tableid the table to scan, which must be a HeapFile
+     * @param tableAlias the alias of the table, see SeqScan
+     * @param ordered true to return tuples in the order of a SeqScan
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, boolean ordered) {
+        this(tid, tableid, tableAlias, ordered, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a parallel scan of a table running on the given pool.
+     *
+     * @param pool the pool that reads the pages
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, boolean ordered,
+            ForkJoinPool pool) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile)) {
+            throw new IllegalArgumentException("table " + tableid + " is not a heap file");
+        }
+        this.tid = tid;
+        this.file = (HeapFile) f;
+        this.tableAlias = tableAlias;
+        this.ordered = ordered;
+        this.pool = pool;
+    }
+
+    /** Creates an unordered parallel scan of a table on the common pool. */
+    public ParallelSeqScan(TransactionId tid, int tableid) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid), false);
+    }
+
+    /** @return true if tuples are returned in the order of a SeqScan */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        int numMorsels = (file.numPages() + MORSEL_PAGES - 1) / MORSEL_PAGES;
+        morsels = new Morsels(numMorsels, ordered, pool);
+        current = null;
+        morsels.start(new Worker(morsels));
+    }
+
+    /**
+     * Returns the TupleDesc of the table with field names prefixed with the
+     * table alias, as SeqScan does.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = file.getTupleDesc();
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = tableAlias + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (morsels == null) {
+            throw new IllegalStateException("scan is not open");
+        }
+        while (current == null || !current.hasNext()) {
+            List<Tuple> next = morsels.take();
+            if (next == null) {
+                return false;
+            }
+            current = next.iterator();
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("Reached end of scan");
+        }
+        return current.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Stops the scan and waits for the workers still reading, so that none
+     * of them takes a lock after the transaction completes.
+     */
+    public void close() {
+        if (morsels != null) {
+            morsels.close();
+            morsels = null;
+        }
+        current = null;
+    }
+
+    /** Reads morsels as long as it can claim one. */
+    private class Worker implements Runnable {
+        private final Morsels morsels;
+
+        Worker(Morsels morsels) {
+            this.morsels = morsels;
+        }
+
+        public void run() {
+            try {
+                for (int morsel = morsels.claim(); morsel >= 0; morsel = morsels.claim()) {
+                    try {
+                        morsels.deliver(morsel, read(morsel));
+                    } catch (DbException e) {
+                        morsels.fail(e);
+                    } catch (TransactionAbortedException e) {
+                        morsels.fail(e);
+                    } catch (RuntimeException e) {
+                        morsels.fail(e);
+                    }
+                }
+            } finally {
+                morsels.retire();
+            }
+        }
+
+        private List<Tuple> read(int morsel) throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            int first = morsel * MORSEL_PAGES;
+            int end = Math.min(first + MORSEL_PAGES, file.numPages());
+            bp.prefetchPages(file.getId(), first, end - first, null);
+            List<Tuple> tuples = new ArrayList<Tuple>();
+            for (int pageNo = first; pageNo < end; pageNo++) {
+                PageId pid = new HeapPageId(file.getId(), pageNo);
+                HeapPage page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_ONLY, null);
+                try {
+                    Iterator<Tuple> it = page.iterator();
+                    while (it.hasNext()) {
+                        tuples.add(it.next());
+                    }
+                } finally {
+                    bp.unpinPage(tid, pid);
+                }
+            }
+            return tuples;
+        }
+    }
+
+    /**
+     * Hands out morsels to workers in order and the tuples of each morsel
+     * from the worker that read it to the consumer. Workers never wait: at
+     * most WINDOW morsels are read ahead of the consumer, and a worker that
+     * cannot claim a morsel because the window is full exits. The consumer
+     * starts workers again as it takes morsels and opens the window.
+     */
+    private static class Morsels {
+        private final int total;
+        private final boolean ordered;
+        private final ForkJoinPool pool;
+        private final int maxWorkers;
+        private Runnable worker;
+
+        /** Morsels read and not yet taken, by index when ordered (all protected by this) */
+        private final Map<Integer, List<Tuple>> byIndex = new HashMap<Integer, List<Tuple>>();
+        private final ArrayDeque<List<Tuple>> ready = new ArrayDeque<List<Tuple>>();
+        /** Next morsel to hand out */
+        private int next;
+        /** Workers started and not yet retired */
+        private int workers;
+        /** Morsels taken by the consumer */
+        private int taken;
+        private Exception failure;
+        private boolean closed;
+
+        Morsels(int total, boolean ordered, ForkJoinPool pool) {
+            this.total = total;
+            this.ordered = ordered;
+            this.pool = pool;
+            this.maxWorkers = Math.max(1, pool.getParallelism());
+        }
+
+        synchronized void start(Runnable worker) {
+            this.worker = worker;
+            spawn();
+        }
+
+        /**
+         * Hands out the next morsel if it lies within the window.
+         *
+         * @return the index of the morsel, or -1 if the worker should exit
+         */
+        synchronized int claim() {
+            if (closed || failure != null || next == total || next >= taken + WINDOW) {
+                return -1;
+            }
+            return next++;
+        }
+
+        /** Notes that a worker has exited, and starts workers if the window opened meanwhile. */
+        synchronized void retire() {
+            workers--;
+            spawn();
+            notifyAll();
+        }
+
+        /** Starts a worker for each morsel that may be claimed and has none yet. */
+        private void spawn() {
+            if (closed || failure != null) {
+                return;
+            }
+            int claimable = Math.min(total, taken + WINDOW) - next;
+            while (workers < maxWorkers && workers < claimable) {
+                try {
+                    pool.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                    return;
+                }
+                workers++;
+            }
+        }
+
+        synchronized void deliver(int morsel, List<Tuple> tuples) {
+            if (ordered) {
+                byIndex.put(morsel, tuples);
+            } else {
+                ready.add(tuples);
+            }
+            notifyAll();
+        }
+
+        synchronized void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        /** Stops handing out morsels and waits for the workers still reading. */
+        synchronized void close() {
+            closed = true;
+            boolean interrupted = false;
+            while (workers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits for the next morsel the consumer should see.
+         *
+         * @return its tuples, or null once every morsel has been taken
+         */
+        synchronized List<Tuple> take() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (failure instanceof TransactionAbortedException) {
+                    throw (TransactionAbortedException) failure;
+                }
+                if (failure instanceof DbException) {
+                    throw (DbException) failure;
+                }
+                if (failure != null) {
+                    throw (RuntimeException) failure;
+                }
+                if (taken == total) {
+                    return null;
+                }
+                List<Tuple> tuples = ordered ? byIndex.remove(taken) : ready.poll();
+                if (tuples != null) {
+                    taken++;
+                    spawn();
+                    return tuples;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for the scan");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays a page access trace recorded by {@link AccessTraceRecorder}
+ * against each replacement policy and reports the hit ratio it would have
+ * achieved with a pool of a given size. No I/O is done; only the policy
+ * decisions are simulated.
+ * <p>
+ * Usage: {@code java simpledb.SimpleDb replay <trace file> <pool pages>
+ * [policy ...]}, where the policies default to all known ones.
+ */
+public class PolicyBenchmark {
+
+    private static final String[] ALL_POLICIES = {
+        ReplacementPolicy.LRU, ReplacementPolicy.CLOCK,
+        ReplacementPolicy.LRU_K, ReplacementPolicy.TWO_Q
+    };
+
+    private static final java.util.function.Predicate<PageId> ANY =
+            new java.util.function.Predicate<PageId>() {
+        public boolean test(PageId pid) {
+            return true;
+        }
+    };
+
+    /**
+     * Replays a trace against a policy managing a pool of the given size.
+     *
+     * @return the fraction of accesses that would have been hits
+     */
+    public static double replay(List<PageId> trace, ReplacementPolicy policy, int poolPages) {
+        Set<PageId> resident = new HashSet<PageId>();
+        long hits = 0;
+        for (PageId pid : trace) {
+            if (resident.contains(pid)) {
+                hits++;
+                policy.onHit(pid);
+                continue;
+            }
+            if (resident.size() >= poolPages) {
+                resident.remove(policy.chooseVictim(ANY));
+            }
+            resident.add(pid);
+            policy.onMiss(pid);
+        }
+        return trace.isEmpty() ? 0 : (double) hits / trace.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: replay <trace file> <pool pages> [policy ...]");
+            return;
+        }
+        List<PageId> trace = AccessTraceRecorder.readTrace(new File(args[0]));
+        int poolPages = Integer.parseInt(args[1]);
+        String[] policies = ALL_POLICIES;
+        if (args.length > 2) {
+            policies = new String[args.length - 2];
+            System.arraycopy(args, 2, policies, 0, policies.length);
+        }
+
+        System.out.println(trace.size() + " accesses, " + poolPages + " pages");
+        for (String name : policies) {
+            ReplacementPolicy policy = ReplacementPolicy.create(name, poolPages);
+            long start = System.nanoTime();
+            double hitRatio = replay(trace, policy, poolPages);
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println(String.format("%-6s hit ratio %.4f  (%d ms)", name, hitRatio, millis));
+        }
+    }
+}
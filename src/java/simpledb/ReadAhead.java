@@ -0,0 +1,81 @@
+package simpledb;
+
+/**
+ * ReadAhead detects sequential page accesses of a scan and keeps the next
+ * few pages of the table loading into the buffer pool in the background,
+ * so the scan finds them cached instead of waiting for each read.
+ * <p>
+ * The number of pages kept in flight, the window, starts small and doubles
+ * whenever the scan asks for a page that is not cached yet, i.e. whenever
+ * the scan consumes pages faster than the current window can read them. It
+ * is capped so prefetched pages are not recycled before the scan reaches
+ * them. A jump to a non-consecutive page resets the window.
+ * <p>
+ * The window is topped up only once half of it has been consumed, so that
+ * each prefetch covers several consecutive pages the file can read at once.
+ *
+ * @see BufferPool#prefetchPages
+ */
+public class ReadAhead {
+
+    private static final int INITIAL_WINDOW = 2;
+    private static final int MAX_WINDOW = 64;
+
+    private final BufferPool pool;
+    private final int tableId;
+    private final int numPages;
+    private final BufferRing ring;
+    private final int maxWindow;
+
+    private int window;
+    private int lastPage;
+    private int nextToPrefetch;
+
+    /**
+     * Creates a read-ahead for a scan of a table.
+     *
+     * @param pool the buffer pool to read pages into
+     * @param tableId the table being scanned
+     * @param numPages the number of pages in the table
+     * @param ring the ring of the scan, or null if it uses the shared pool
+     */
+    public ReadAhead(BufferPool pool, int tableId, int numPages, BufferRing ring) {
+        this.pool = pool;
+        this.tableId = tableId;
+        this.numPages = numPages;
+        this.ring = ring;
+        // prefetched pages must not push each other out of a ring
+        int room = ring != null ? ring.capacity() / 2 : pool.getNumPages() / 4;
+        this.maxWindow = Math.max(0, Math.min(MAX_WINDOW, room));
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+        this.lastPage = -1;
+        this.nextToPrefetch = 0;
+    }
+
+    /** @return the current number of pages read ahead of the scan */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Notes that the scan is about to read the specified page and starts
+     * reading the pages that follow it.
+     */
+    public void onAccess(int pageNo) {
+        if (pageNo != lastPage + 1) {
+            window = Math.min(INITIAL_WINDOW, maxWindow);
+            nextToPrefetch = pageNo + 1;
+        } else if (pageNo > 0 && !pool.isCached(new HeapPageId(tableId, pageNo))) {
+            // the scan caught up with the reads: keep more of them in flight
+            window = Math.min(window * 2, maxWindow);
+        }
+        lastPage = pageNo;
+
+        nextToPrefetch = Math.max(nextToPrefetch, pageNo + 1);
+        int end = Math.min(numPages, pageNo + 1 + window);
+        if (nextToPrefetch < end && nextToPrefetch - (pageNo + 1) <= window / 2) {
+            pool.prefetchPages(tableId, nextToPrefetch, end - nextToPrefetch, ring);
+            nextToPrefetch = end;
+        }
+    }
+}
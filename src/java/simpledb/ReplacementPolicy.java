@@ -0,0 +1,62 @@
+package simpledb;
+
+/**
+ * Decides which page BufferPool evicts when it needs a free frame.
+ * <p>
+ * The pool tells its policy about every page that enters (onMiss), is read
+ * again (onHit) or leaves the pool for a reason other than eviction
+ * (onRemove). chooseVictim() picks a page among those the pool says may be
+ * evicted and stops tracking it. Implementations must be thread-safe;
+ * onHit() is called on every buffer pool hit and should be cheap.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** Names accepted by {@link #create} */
+    String LRU = "lru";
+    String CLOCK = "clock";
+    String LRU_K = "lru-k";
+    String TWO_Q = "2q";
+
+    /** Records an access to a page that is already resident. */
+    void onHit(PageId pid);
+
+    /** Records that a page has just been read into the pool. */
+    void onMiss(PageId pid);
+
+    /**
+     * Chooses a page to evict and stops tracking it. Pages for which
+     * evictable returns false are passed over.
+     *
+     * @return the id of the page to evict, or null if no page can be evicted
+     */
+    PageId chooseVictim(java.util.function.Predicate<PageId> evictable);
+
+    /** Stops tracking a page that left the pool for a reason other than eviction. */
+    void onRemove(PageId pid);
+
+    /** Adapts the policy to a buffer pool that now has capacity frames. */
+    void setCapacity(int capacity);
+
+    /**
+     * Creates a policy by name.
+     *
+     * @param name one of LRU, CLOCK, LRU_K or TWO_Q
+     * @param capacity the number of frames in the buffer pool
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static ReplacementPolicy create(String name, int capacity) {
+        String n = name.toLowerCase();
+        if (n.equals(LRU)) {
+            return new LruPolicy();
+        } else if (n.equals(CLOCK)) {
+            return new ClockPolicy();
+        } else if (n.equals(LRU_K)) {
+            return new LruKPolicy(LruKPolicy.DEFAULT_K, capacity);
+        } else if (n.equals(TWO_Q)) {
+            return new TwoQueuePolicy(capacity);
+        }
+        throw new IllegalArgumentException("unknown replacement policy " + name);
+    }
+}
@@ -90,6 +90,14 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("replay")) {
+            // compare replacement policies on a recorded page access trace
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+            PolicyBenchmark.main(newargs);
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
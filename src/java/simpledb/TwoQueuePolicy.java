@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scan-resistant page replacement using the 2Q algorithm (Johnson and
+ * Shasha, VLDB '94).
+ * <p>
+ * Pages read for the first time enter A1in, a FIFO queue holding about a
+ * quarter of the pool. When they age out of A1in their ids are remembered
+ * in A1out, a ghost queue that holds no pages. Only a page that is read
+ * again while its id is in A1out is admitted to Am, the main queue. A
+ * large scan therefore churns through A1in without displacing the hot
+ * pages in Am.
+ * <p>
+ * Am is managed with CLOCK rather than strict LRU so that a hit only sets
+ * a reference bit and never takes a lock.
+ *
+ * @Threadsafe
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private static class Node {
+        final PageId pid;
+        final boolean hot;
+        volatile boolean referenced;
+
+        Node(PageId pid, boolean hot) {
+            this.pid = pid;
+            this.hot = hot;
+        }
+    }
+
+    /** Every resident page tracked by this policy, for lock-free hits */
+    private final ConcurrentHashMap<PageId, Node> resident;
+
+    /** Pages seen once, oldest first (protected by this) */
+    private final LinkedHashMap<PageId, Node> a1in;
+
+    /** Ids of pages recently evicted from A1in, oldest first (protected by this) */
+    private final LinkedHashSet<PageId> a1out;
+
+    /** Pages seen more than once, in clock order (protected by this) */
+    private final ArrayDeque<Node> am;
+
+    private int maxA1in;
+    private int maxA1out;
+
+    /**
+     * Creates a policy for a pool of the given number of frames.
+     *
+     * @param capacity the number of frames in the buffer pool
+     */
+    public TwoQueuePolicy(int capacity) {
+        setCapacity(capacity);
+        this.resident = new ConcurrentHashMap<PageId, Node>();
+        this.a1in = new LinkedHashMap<PageId, Node>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new ArrayDeque<Node>();
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        maxA1in = Math.max(1, capacity / 4);
+        maxA1out = Math.max(1, capacity / 2);
+        if (a1out != null) {
+            Iterator<PageId> oldest = a1out.iterator();
+            while (a1out.size() > maxA1out) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    public void onHit(PageId pid) {
+        Node node = resident.get(pid);
+        if (node != null && !node.referenced) {
+            node.referenced = true;
+        }
+    }
+
+    public synchronized void onMiss(PageId pid) {
+        if (resident.containsKey(pid)) {
+            return;
+        }
+        Node node;
+        if (a1out.remove(pid)) {
+            node = new Node(pid, true);
+            am.addLast(node);
+        } else {
+            node = new Node(pid, false);
+            a1in.put(pid, node);
+        }
+        resident.put(pid, node);
+    }
+
+    public synchronized PageId chooseVictim(java.util.function.Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > maxA1in || am.isEmpty()) {
+            victim = evictFromA1in(evictable);
+        }
+        if (victim == null) {
+            victim = evictFromAm(evictable);
+        }
+        if (victim == null) {
+            victim = evictFromA1in(evictable);
+        }
+        return victim;
+    }
+
+    public synchronized void onRemove(PageId pid) {
+        Node node = resident.remove(pid);
+        if (node == null) {
+            return;
+        }
+        if (node.hot) {
+            am.remove(node);
+        } else {
+            a1in.remove(pid);
+        }
+    }
+
+    private PageId evictFromA1in(java.util.function.Predicate<PageId> evictable) {
+        Iterator<Node> it = a1in.values().iterator();
+        while (it.hasNext()) {
+            Node node = it.next();
+            if (evictable.test(node.pid)) {
+                it.remove();
+                resident.remove(node.pid);
+                a1out.add(node.pid);
+                if (a1out.size() > maxA1out) {
+                    Iterator<PageId> oldest = a1out.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                return node.pid;
+            }
+        }
+        return null;
+    }
+
+    private PageId evictFromAm(java.util.function.Predicate<PageId> evictable) {
+        // two rotations are enough: the first clears every reference bit
+        for (int i = 2 * am.size(); i > 0; i--) {
+            Node node = am.pollFirst();
+            if (!node.referenced && evictable.test(node.pid)) {
+                resident.remove(node.pid);
+                return node.pid;
+            }
+            node.referenced = false;
+            am.addLast(node);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,13 @@
+package simpledb;
+
+/**
+ * Wraps a DbException or TransactionAbortedException where a checked
+ * exception cannot be thrown, e.g. from a Stream over a DbFile.
+ */
+public class UncheckedDbException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedDbException(Exception cause) {
+        super(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves and loads the set of pages resident in a buffer pool, so that a
+ * restarted database can read them back before queries ask for them.
+ * <p>
+ * The set is stored sorted by table and page number, with consecutive
+ * pages of a table collapsed into runs:
+ * <pre>
+ *   int MAGIC, int number of tables
+ *   per table: int table id, int number of runs
+ *     per run: int first page number, int number of pages
+ * </pre>
+ * A pool of a few thousand pages that were read by scans thus needs only
+ * a few dozen bytes.
+ *
+ * @see BufferPool#enableWarmStart
+ */
+public class WarmStart {
+
+    private static final int MAGIC = 0x53444257;
+
+    /**
+     * Writes the specified pages to a file, replacing it atomically so that
+     * a crash while saving leaves the previous set intact.
+     */
+    public static void save(Collection<PageId> pages, File f) throws IOException {
+        Map<Integer, List<int[]>> runs = toRuns(pages);
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(runs.size());
+            for (Map.Entry<Integer, List<int[]>> table : runs.entrySet()) {
+                out.writeInt(table.getKey());
+                out.writeInt(table.getValue().size());
+                for (int[] run : table.getValue()) {
+                    out.writeInt(run[0]);
+                    out.writeInt(run[1]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("unable to replace " + f);
+            }
+        }
+    }
+
+    /**
+     * Reads a file written by save().
+     *
+     * @return the runs of pages of each table, as {first page, count}
+     *         pairs, in table order and page order
+     */
+    public static Map<Integer, List<int[]>> load(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not a buffer pool page set");
+            }
+            Map<Integer, List<int[]>> runs = new LinkedHashMap<Integer, List<int[]>>();
+            for (int tables = in.readInt(); tables > 0; tables--) {
+                int tableId = in.readInt();
+                List<int[]> tableRuns = new ArrayList<int[]>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    tableRuns.add(new int[] { in.readInt(), in.readInt() });
+                }
+                runs.put(tableId, tableRuns);
+            }
+            return runs;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves the resident pages of a pool to a file every intervalMillis, if
+     * positive, and when the JVM shuts down. Saving stops once the pool is
+     * garbage collected.
+     */
+    static void saveInBackground(BufferPool pool, final File f, final long intervalMillis) {
+        final WeakReference<BufferPool> ref = new WeakReference<BufferPool>(pool);
+        Runtime.getRuntime().addShutdownHook(new Thread("simpledb-warm-start-save") {
+            public void run() {
+                saveQuietly(ref.get(), f);
+            }
+        });
+        if (intervalMillis <= 0) {
+            return;
+        }
+        Thread saver = new Thread("simpledb-warm-start-save") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    BufferPool bp = ref.get();
+                    if (bp == null) {
+                        return;
+                    }
+                    saveQuietly(bp, f);
+                    bp = null;
+                }
+            }
+        };
+        saver.setDaemon(true);
+        saver.start();
+    }
+
+    private static void saveQuietly(BufferPool pool, File f) {
+        if (pool == null) {
+            return;
+        }
+        try {
+            pool.saveResidentPages(f);
+        } catch (IOException e) {
+            Debug.log("unable to save buffer pool pages to %s: %s", f, e.getMessage());
+        }
+    }
+
+    /** Sorts pages into runs of consecutive page numbers, per table. */
+    static Map<Integer, List<int[]>> toRuns(Collection<PageId> pages) {
+        List<PageId> sorted = new ArrayList<PageId>(pages);
+        Collections.sort(sorted, BufferPool.FILE_ORDER);
+        Map<Integer, List<int[]>> runs = new LinkedHashMap<Integer, List<int[]>>();
+        int[] run = null;
+        int runTable = 0;
+        for (PageId pid : sorted) {
+            if (run != null && runTable == pid.getTableId()
+                    && run[0] + run[1] == pid.pageNumber()) {
+                run[1]++;
+                continue;
+            }
+            List<int[]> tableRuns = runs.get(pid.getTableId());
+            if (tableRuns == null) {
+                tableRuns = new ArrayList<int[]>();
+                runs.put(pid.getTableId(), tableRuns);
+            }
+            run = new int[] { pid.pageNumber(), 1 };
+            runTable = pid.getTableId();
+            tableRuns.add(run);
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,457 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    /** HeapFile that counts reads and holds each one until the gate opens. */
+    static class GatedHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        GatedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            reads.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * HeapFile whose insertTuple() just dirties the page named by the
+     * tuple's record id, and which records the size of every write.
+     */
+    static class RecordingHeapFile extends HeapFile {
+        final List<Integer> writes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+                throws DbException, IOException, TransactionAbortedException {
+            Page p = Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
+                    Permissions.READ_WRITE);
+            return new ArrayList<Page>(Arrays.asList(p));
+        }
+
+        @Override
+        public void writePages(List<Page> pages) throws IOException {
+            writes.add(pages.size());
+            super.writePages(pages);
+        }
+    }
+
+    private GatedHeapFile createGatedFile(int pages) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1000, null, null);
+        GatedHeapFile hf = new GatedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Threads missing on the same page at the same time must share one read.
+     */
+    @Test public void concurrentMissesShareOneRead() throws Exception {
+        final GatedHeapFile hf = createGatedFile(1);
+        final PageId pid = new HeapPageId(hf.getId(), 0);
+        final List<Page> results = new ArrayList<Page>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        Page p = Database.getBufferPool().getPage(new TransactionId(), pid,
+                                Permissions.READ_ONLY);
+                        synchronized (results) {
+                            results.add(p);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+
+        // let every thread reach the pool before the read completes
+        Thread.sleep(200);
+        hf.gate.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, hf.reads.get());
+        assertEquals(8, results.size());
+        for (Page p : results) {
+            assertSame(results.get(0), p);
+        }
+    }
+
+    /**
+     * An off-heap pool must return the same tuples as the file, including
+     * for pages that were evicted after the caller obtained them.
+     */
+    @Test public void offHeapPagesSurviveEviction() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, tuples);
+        BufferPool bp = new BufferPool(2, true);
+        assertTrue(bp.isOffHeap());
+
+        TransactionId tid = new TransactionId();
+        List<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            pages.add(bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+        }
+
+        int row = 0;
+        for (Page p : pages) {
+            Iterator<Tuple> it = ((HeapPage) p).iterator();
+            while (it.hasNext()) {
+                assertEquals(tuples.get(row++), SystemTestUtil.tupleToList(it.next()));
+            }
+        }
+        assertEquals(tuples.size(), row);
+    }
+
+    /**
+     * A scan of a table larger than the pool goes through a small ring and
+     * must not push out pages that other transactions keep using.
+     */
+    @Test public void largeScanUsesRing() throws Exception {
+        BufferPool bp = Database.resetBufferPool(20);
+        GatedHeapFile hot = createGatedFile(4);
+        hot.gate.countDown();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 60, null, tuples);
+        assertNotNull(bp.getScanRing(big.numPages()));
+        SystemTestUtil.matchTuples(big, tuples);
+
+        for (int i = 0; i < 4; i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(4, hot.reads.get());
+    }
+
+    /**
+     * A prefetched page is read once in the background and then served
+     * from the pool; a getPage() racing with the prefetch shares its read.
+     */
+    @Test public void prefetchReadsInBackground() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        GatedHeapFile hf = createGatedFile(2);
+        PageId first = new HeapPageId(hf.getId(), 0);
+        PageId second = new HeapPageId(hf.getId(), 1);
+        TransactionId tid = new TransactionId();
+
+        bp.prefetchPage(first, null);
+        bp.prefetchPage(second, null);
+        assertFalse(bp.isCached(first));
+        hf.gate.countDown();
+
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        for (int i = 0; i < 100 && !bp.isCached(second); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(bp.isCached(second));
+        bp.getPage(tid, second, Permissions.READ_ONLY);
+        assertEquals(2, hf.reads.get());
+    }
+
+    /**
+     * prefetchPages() reads each run of pages missing from the pool with
+     * one read, and every page still goes through readPage() once.
+     */
+    @Test public void prefetchPagesReadsRuns() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 6, 1000, null, null);
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger reads = new AtomicInteger();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override
+            public List<Page> readPages(int firstPage, int count) throws IOException {
+                batches.add(count);
+                return super.readPages(firstPage, count);
+            }
+
+            @Override
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+
+        bp.prefetchPages(hf.getId(), 0, 6, null);
+        for (int i = 0; i < 6; i++) {
+            PageId pid = new HeapPageId(hf.getId(), i);
+            for (int wait = 0; wait < 100 && !bp.isCached(pid); wait++) {
+                Thread.sleep(10);
+            }
+            assertTrue(bp.isCached(pid));
+        }
+        Collections.sort(batches);
+        assertEquals(Arrays.asList(2, 3), batches);
+        assertEquals(6, reads.get());
+        assertArrayEquals(hf.readPage(new HeapPageId(hf.getId(), 4)).getPageData(),
+                bp.getPage(tid, new HeapPageId(hf.getId(), 4), Permissions.READ_ONLY).getPageData());
+    }
+
+    /**
+     * getPageAsync() reads missing pages through readPageAsync(), and thus
+     * readPage(), and returns pages in the pool in a completed future.
+     */
+    @Test public void getPageAsyncOverlapsReads() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 4, 1000, null, null);
+        final AtomicInteger reads = new AtomicInteger();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+
+        List<CompletableFuture<Page>> futures = new ArrayList<CompletableFuture<Page>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(bp.getPageAsync(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+        }
+        for (int i = 0; i < 4; i++) {
+            PageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(pid, futures.get(i).get().getId());
+            assertTrue(bp.isCached(pid));
+        }
+        assertEquals(4, reads.get());
+
+        CompletableFuture<Page> hit = bp.getPageAsync(tid, new HeapPageId(hf.getId(), 2),
+                Permissions.READ_ONLY);
+        assertTrue(hit.isDone());
+        assertSame(futures.get(2).get(), hit.get());
+        assertEquals(4, reads.get());
+
+        try {
+            bp.getPageAsync(tid, new HeapPageId(-1, 0), Permissions.READ_ONLY).get();
+            fail("expected the read to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DbException);
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Commit writes the pages it dirtied before it returns, in file order,
+     * each file's pages in one writePages() call that merges adjacent ones,
+     * and logs their images and a commit record; aborted changes never
+     * reach the file.
+     */
+    @Test public void committedPagesWrittenAtCommit() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 5, 1000, null, null);
+        RecordingHeapFile hf = new RecordingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        byte[] original = hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData();
+
+        TransactionId tid = new TransactionId();
+        for (int pageNo : new int[] { 3, 0, 1 }) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setRecordId(new RecordId(new HeapPageId(hf.getId(), pageNo), 0));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        int records = Database.getLogFile().getTotalRecords();
+        bp.transactionComplete(tid, true);
+
+        assertEquals(Arrays.asList(3), hf.writes);
+        assertEquals(records + 4, Database.getLogFile().getTotalRecords());
+        PageId first = new HeapPageId(hf.getId(), 0);
+        assertNull(bp.getPage(tid, first, Permissions.READ_ONLY).isDirty());
+        assertTrue(Arrays.equals(original, hf.readPage(first).getPageData()));
+
+        TransactionId aborted = new TransactionId();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setRecordId(new RecordId(new HeapPageId(hf.getId(), 4), 0));
+        bp.insertTuple(aborted, hf.getId(), t);
+        bp.transactionComplete(aborted, false);
+        assertFalse(bp.isCached(new HeapPageId(hf.getId(), 4)));
+        assertEquals(1, hf.writes.size());
+    }
+
+    /**
+     * The counters see every hit, miss and eviction, residency is reported
+     * per table, and the MBean reports the current pool.
+     */
+    @Test public void statsCountRequests() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 6; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, new HeapPageId(hf.getId(), 5), Permissions.READ_ONLY);
+
+        BufferPoolStats.Snapshot stats = bp.getStats();
+        assertEquals(4, stats.numPages);
+        assertEquals(1, stats.hits);
+        assertEquals(6, stats.misses);
+        assertEquals(2, stats.evictions);
+        assertEquals(Integer.valueOf(4), stats.pagesPerTable.get(hf.getId()));
+        assertEquals(1.0 / 7, stats.hitRatio(), 1e-9);
+
+        ObjectName name = new ObjectName(BufferPoolStats.OBJECT_NAME);
+        assertEquals(6L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Misses"));
+        bp.resetStats();
+        assertEquals(0, bp.getStats().misses);
+    }
+
+    /**
+     * Growing keeps every cached page and adds frames; shrinking evicts
+     * gradually, two pages per miss, until the pool fits its new size.
+     */
+    @Test public void resizeKeepsCachedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 12, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+
+        assertSame(bp, Database.resizeBufferPool(8));
+        for (int i = 0; i < 8; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, bp.getStats().evictions);
+        assertEquals(8, bp.getStats().residentPages());
+
+        bp.resize(3);
+        assertEquals(3, bp.getNumPages());
+        assertEquals(8, bp.getStats().residentPages());
+        bp.getPage(tid, new HeapPageId(hf.getId(), 8), Permissions.READ_ONLY);
+        assertEquals(7, bp.getStats().residentPages());
+        for (int i = 9; i < 12; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(3, bp.getStats().residentPages());
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertTrue(bp.getStats().residentPages() <= 3);
+    }
+
+    /** A page four times the default size takes the room of four default-size pages. */
+    @Test public void largePagesTakeSeveralPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        int pageSize = 4 * BufferPool.getPageSize();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2016 * 3, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, f, pageSize, 2);
+        HeapFile big = new HeapFile(f, Utility.getTupleDesc(2), pageSize);
+        Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        TransactionId tid = new TransactionId();
+
+        bp.getPage(tid, new HeapPageId(big.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(big.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(0, bp.getStats().evictions);
+        bp.getPage(tid, new HeapPageId(small.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(1, bp.getStats().evictions);
+        bp.getPage(tid, new HeapPageId(big.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(2, bp.getStats().residentPages());
+    }
+
+    /** A scan pins only the page it is reading and nothing once closed. */
+    @Test public void scanUnpinsPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(new HeapPageId(f.getId(), 0)));
+        while (it.hasNext()) {
+            it.next();
+        }
+        assertEquals(0, bp.getPinCount(new HeapPageId(f.getId(), 0)));
+        assertEquals(1, bp.getPinCount(new HeapPageId(f.getId(), 2)));
+        it.close();
+        assertEquals(0, bp.getPinCount(new HeapPageId(f.getId(), 2)));
+    }
+
+    /**
+     * The saved page set collapses consecutive pages into runs, and warming
+     * up a restarted pool reads them back in order until the pool is full.
+     */
+    @Test public void warmStartRestoresPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        TransactionId tid = new TransactionId();
+        for (int i : new int[] { 5, 0, 2, 1 }) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        File saved = File.createTempFile("warmstart", ".dat");
+        saved.deleteOnExit();
+        bp.saveResidentPages(saved);
+
+        List<int[]> runs = WarmStart.load(saved).get(hf.getId());
+        assertEquals(2, runs.size());
+        assertArrayEquals(new int[] { 0, 3 }, runs.get(0));
+        assertArrayEquals(new int[] { 5, 1 }, runs.get(1));
+
+        bp = Database.resetBufferPool(3);
+        assertEquals(3, bp.warmUp(saved).get().intValue());
+        assertEquals(0, bp.getStats().evictions);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bp.isCached(new HeapPageId(hf.getId(), i)));
+        }
+        assertFalse(bp.isCached(new HeapPageId(hf.getId(), 5)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
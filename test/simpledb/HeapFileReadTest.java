@@ -121,6 +121,202 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A reader interrupted mid-read closes the shared channel; other
+     * readers reopen it, and so does a read after close().
+     */
+    @Test
+    public void sharedChannelReopens() throws Exception {
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        final Page[] interrupted = new Page[1];
+        Thread t = new Thread() {
+            public void run() {
+                Thread.currentThread().interrupt();
+                interrupted[0] = hf.readPage(pid);
+            }
+        };
+        t.start();
+        t.join();
+        assertNull(interrupted[0]);
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(pid, page.getId());
+        assertEquals(20, 504 - page.getNumEmptySlots());
+        hf.close();
+        assertArrayEquals(page.getPageData(), hf.readPage(pid).getPageData());
+    }
+
+    /** Reads leave a missing file alone; the first write creates it. */
+    @Test
+    public void readsDoNotCreateFile() throws Exception {
+        java.io.File f = java.io.File.createTempFile("missing", ".dat");
+        assertTrue(f.delete());
+        f.deleteOnExit();
+        HeapFile missing = new HeapFile(f, td);
+        Database.getCatalog().addTable(missing, SystemTestUtil.getUUID());
+        missing.setDirectIo(true);
+        assertEquals(0, missing.numPages());
+        assertFalse(f.exists());
+
+        HeapPageId pid = new HeapPageId(missing.getId(), 0);
+        missing.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertTrue(f.exists());
+        assertEquals(1, missing.numPages());
+        missing.close();
+    }
+
+    /**
+     * Memory-mapped reads return the same pages as channel reads, across
+     * several mappings, and see pages appended after the file was mapped.
+     */
+    @Test
+    public void memoryMappedReads() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            expected.add(file.readPage(new HeapPageId(file.getId(), i)).getPageData());
+        }
+
+        file.setMemoryMapped(true, 2);
+        assertTrue(file.isMemoryMapped());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected.get(i),
+                    file.readPage(new HeapPageId(file.getId(), i)).getPageData());
+        }
+
+        // a page read from the mapping is copied before it is modified
+        HeapPage mapped = (HeapPage) file.readPage(new HeapPageId(file.getId(), 0));
+        mapped.deleteTuple(mapped.iterator().next());
+        assertArrayEquals(expected.get(0),
+                file.readPage(new HeapPageId(file.getId(), 0)).getPageData());
+
+        HeapPageId appended = new HeapPageId(file.getId(), 3);
+        file.writePage(new HeapPage(appended, expected.get(1)));
+        assertEquals(4, file.numPages());
+        assertArrayEquals(expected.get(1), file.readPage(appended).getPageData());
+        assertArrayEquals(expected.get(2),
+                file.readPage(new HeapPageId(file.getId(), 2)).getPageData());
+    }
+
+    /**
+     * Direct I/O, where the file system supports it, reads and writes the
+     * same pages as buffered I/O, including multi-page reads.
+     */
+    @Test
+    public void directIo() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            expected.add(file.readPage(new HeapPageId(file.getId(), i)).getPageData());
+        }
+
+        boolean direct = file.setDirectIo(true);
+        assertEquals(direct, file.isDirectIo());
+        List<Page> pages = file.readPages(0, 3);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected.get(i), pages.get(i).getPageData());
+        }
+        HeapPageId appended = new HeapPageId(file.getId(), 3);
+        file.writePage(new HeapPage(appended, expected.get(1)));
+        assertArrayEquals(expected.get(1), file.readPage(appended).getPageData());
+
+        assertFalse(file.setDirectIo(false));
+        assertArrayEquals(expected.get(1), file.readPage(appended).getPageData());
+    }
+
+    /** A multi-page read too large for one array is refused up front. */
+    @Test(expected = IllegalArgumentException.class)
+    public void readPagesRejectsOversizedRead() throws Exception {
+        hf.readPages(0, Integer.MAX_VALUE / BufferPool.getPageSize() + 1);
+    }
+
+    /**
+     * Sequential and parallel streams see every tuple; the sequential one
+     * in file order, as does an ordered parallel collect.
+     */
+    @Test
+    public void streams() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 504 * 20 + 5, null, tuples);
+        List<ArrayList<Integer>> inOrder = new ArrayList<ArrayList<Integer>>();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            inOrder.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+
+        java.util.function.Function<Tuple, ArrayList<Integer>> toList =
+                new java.util.function.Function<Tuple, ArrayList<Integer>>() {
+            public ArrayList<Integer> apply(Tuple t) {
+                return SystemTestUtil.tupleToList(t);
+            }
+        };
+        assertEquals(inOrder, file.stream(tid).map(toList)
+                .collect(java.util.stream.Collectors.<ArrayList<Integer>>toList()));
+        assertEquals(inOrder, file.parallelStream(tid).map(toList)
+                .collect(java.util.stream.Collectors.<ArrayList<Integer>>toList()));
+        assertEquals(tuples.size(), file.parallelStream(tid).count());
+    }
+
+    /**
+     * Fork/join threads of a parallel stream lock pages under the stream's
+     * transaction; completing it leaves every page free for a writer.
+     */
+    @Test(timeout = 20000)
+    public void parallelStreamReleasesLocks() throws Exception {
+        final HeapFile file = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+        try {
+            for (int run = 0; run < 5; run++) {
+                final TransactionId reader = new TransactionId();
+                long count = pool.submit(new java.util.concurrent.Callable<Long>() {
+                    public Long call() {
+                        return file.parallelStream(reader).count();
+                    }
+                }).get();
+                assertEquals(504 * 20, count);
+                Database.getBufferPool().transactionComplete(reader);
+
+                TransactionId writer = new TransactionId();
+                for (int i = 0; i < file.numPages(); i++) {
+                    Database.getBufferPool().getPage(writer, new HeapPageId(file.getId(), i),
+                            Permissions.READ_WRITE);
+                }
+                Database.getBufferPool().transactionComplete(writer);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A file with pages larger than the default is read with its own page
+     * size, also through an off-heap pool whose slots are smaller.
+     */
+    @Test
+    public void largePages() throws Exception {
+        int pageSize = 4 * BufferPool.getPageSize();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        java.io.File f = SystemTestUtil.createRandomHeapFileUnopened(2, 3000, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, f, pageSize, 2);
+        HeapFile big = new HeapFile(f, td, pageSize);
+        Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+
+        // 2016 tuples of 8 bytes fit in a 16KB page
+        assertEquals(2, big.numPages());
+        assertEquals(pageSize, Database.getCatalog().getPageSize(big.getId()));
+        assertEquals(pageSize, big.readPage(new HeapPageId(big.getId(), 1)).getPageData().length);
+        SystemTestUtil.matchTuples(big, tuples);
+
+        BufferPool offHeap = new BufferPool(1, true);
+        for (int i = 0; i < big.numPages(); i++) {
+            HeapPage p = (HeapPage) offHeap.getPage(tid, new HeapPageId(big.getId(), i),
+                    Permissions.READ_ONLY);
+            assertEquals(i == 0 ? 0 : 2 * 2016 - 3000, p.getNumEmptySlots());
+        }
+    }
+
     /**
      * JUnit suite target
      */
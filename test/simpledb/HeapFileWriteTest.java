@@ -0,0 +1,300 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileWriteTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("empty", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        tid = new TransactionId();
+    }
+
+    private int countTuples() throws Exception {
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = hf.iterator(reader);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(reader);
+        return n;
+    }
+
+    /** Inserts fill the existing page before the file grows by one page. */
+    @Test public void insertFillsPagesBeforeExtending() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 504; i++) {
+            bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, hf.numPages());
+        Tuple last = Utility.getHeapTuple(504, 2);
+        bp.insertTuple(tid, hf.getId(), last);
+        assertEquals(2, hf.numPages());
+        assertEquals(new RecordId(new HeapPageId(hf.getId(), 1), 0), last.getRecordId());
+        bp.transactionComplete(tid);
+
+        assertEquals(505, countTuples());
+        assertEquals(0, hf.freeSpace().getFreeSlots(0));
+        assertEquals(FreeSpaceMap.MAX_TRACKED, hf.freeSpace().getFreeSlots(1));
+    }
+
+    /**
+     * An insert locks its page exclusively from the start, so it waits
+     * behind a reader of the page instead of sharing the page and then
+     * deadlocking with the reader's own insert.
+     */
+    @Test public void insertDoesNotUpgradeLock() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(0, 2));
+        bp.transactionComplete(tid);
+
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        final TransactionId inserter = new TransactionId();
+        final Exception[] failed = new Exception[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    bp.insertTuple(inserter, hf.getId(), Utility.getHeapTuple(1, 2));
+                    bp.transactionComplete(inserter);
+                } catch (Exception e) {
+                    failed[0] = e;
+                    try {
+                        bp.transactionComplete(inserter, false);
+                    } catch (java.io.IOException io) {
+                        throw new RuntimeException(io);
+                    }
+                }
+            }
+        };
+        t.start();
+        while (t.isAlive() && t.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        bp.insertTuple(reader, hf.getId(), Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(reader);
+        t.join();
+        assertNull(failed[0]);
+        assertEquals(3, countTuples());
+    }
+
+    /** A delete makes its page the first candidate for the next insert. */
+    @Test public void deleteFreesSlotForNextInsert() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Tuple victim = null;
+        for (int i = 0; i < 600; i++) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            bp.insertTuple(tid, hf.getId(), t);
+            if (i == 17) {
+                victim = t;
+            }
+        }
+        bp.deleteTuple(tid, victim);
+        assertNull(victim.getRecordId());
+        assertEquals(1, hf.freeSpace().getFreeSlots(0));
+
+        Tuple t = Utility.getHeapTuple(1000, 2);
+        bp.insertTuple(tid, hf.getId(), t);
+        assertEquals(new RecordId(new HeapPageId(hf.getId(), 0), 17), t.getRecordId());
+        bp.transactionComplete(tid);
+        assertEquals(600, countTuples());
+    }
+
+    @Test(expected = DbException.class)
+    public void deleteTwiceRejected() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Tuple copy = Utility.getHeapTuple(1, 2);
+        copy.setRecordId(t.getRecordId());
+        Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().deleteTuple(tid, copy);
+    }
+
+    /** The map survives close() and is not read twice. */
+    @Test public void freeSpaceMapSavedOnClose() throws Exception {
+        FreeSpaceMap map = hf.freeSpace();
+        map.update(0, 0);
+        map.update(2, 7);
+        // a page not seen yet may have room
+        assertEquals(FreeSpaceMap.UNKNOWN, map.getFreeSlots(1));
+        assertEquals(1, map.findPage(3));
+        map.update(1, 0);
+        assertEquals(2, map.findPage(3));
+        map.update(1, 3);
+        assertEquals(1, map.findPage(3));
+
+        hf.close();
+        File saved = new File(hf.getFile().getPath() + ".fsm");
+        assertTrue(saved.exists());
+        FreeSpaceMap reloaded = hf.freeSpace();
+        assertFalse(saved.exists());
+        assertEquals(3, reloaded.numPages());
+        assertEquals(0, reloaded.getFreeSlots(0));
+        assertEquals(3, reloaded.getFreeSlots(1));
+        assertEquals(7, reloaded.getFreeSlots(2));
+        assertEquals(-1, new FreeSpaceMap().findPage(0));
+    }
+
+    /**
+     * A bulk load appends packed pages after the existing ones and logs a
+     * single record for them.
+     */
+    @Test public void bulkLoadAppendsFullPages() throws Exception {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 3 + 10; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        int records = Database.getLogFile().getTotalRecords();
+        assertEquals(tuples.size(), hf.bulkLoad(tid, tuples.iterator()));
+        assertEquals(records + 1, Database.getLogFile().getTotalRecords());
+
+        assertEquals(5, hf.numPages());
+        assertEquals(new RecordId(new HeapPageId(hf.getId(), 1), 0), tuples.get(0).getRecordId());
+        assertEquals(0, hf.freeSpace().getFreeSlots(3));
+        assertEquals(FreeSpaceMap.MAX_TRACKED, hf.freeSpace().getFreeSlots(4));
+        assertEquals(tuples.size(), countTuples());
+    }
+
+    /** A failed bulk load leaves the file as it was; readers never saw its pages. */
+    @Test public void failedBulkLoadIsInvisible() throws Exception {
+        final int[] pagesSeen = new int[1];
+        Iterator<Tuple> failing = new Iterator<Tuple>() {
+            int n = 0;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Tuple next() {
+                if (++n == 504 * 70) {
+                    pagesSeen[0] = hf.numPages();
+                    throw new IllegalStateException("source failed");
+                }
+                return Utility.getHeapTuple(n, 2);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            hf.bulkLoad(tid, failing);
+            fail("expected the load to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, pagesSeen[0]);
+        assertEquals(1, hf.numPages());
+        assertEquals(BufferPool.getPageSize(), hf.getFile().length());
+    }
+
+    /**
+     * The page count is kept in memory: writes through the HeapFile raise
+     * it, growing the file behind its back does not.
+     */
+    @Test public void pageCountKeptInMemory() throws Exception {
+        assertEquals(1, hf.numPages());
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        raf.setLength(2 * BufferPool.getPageSize());
+        raf.close();
+        assertEquals(1, hf.numPages());
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 3);
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertEquals(4, hf.numPages());
+    }
+
+    private static List<byte[]> readAll(HeapFile f) {
+        List<byte[]> pages = new ArrayList<byte[]>();
+        for (int i = 0; i < f.numPages(); i++) {
+            pages.add(f.readPage(new HeapPageId(f.getId(), i)).getPageData());
+        }
+        return pages;
+    }
+
+    private static void assertSamePages(List<byte[]> expected, HeapFile f) {
+        List<byte[]> actual = readAll(f);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * A compressed file takes a fraction of the space of its pages, and
+     * reads back the same pages after a rewrite, from the extent map saved
+     * by close() and from one rebuilt after a crash. A second instance that
+     * only read leaves the saved map alone.
+     */
+    @Test public void compressedPagesRoundTrip() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        File map = new File(f.getPath() + ".map");
+        map.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        int pageSize = BufferPool.getPageSize();
+        HeapFile cf = new HeapFile(f, Utility.getTupleDesc(2), pageSize, true);
+        Database.getCatalog().addTable(cf, SystemTestUtil.getUUID());
+        assertTrue(cf.isCompressed());
+        assertFalse(cf.setDirectIo(true));
+
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 4 + 10; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        cf.bulkLoad(tid, tuples.iterator());
+        assertEquals(5, cf.numPages());
+        assertTrue(f.length() < 5 * pageSize / 2);
+
+        HeapFile reader = new HeapFile(f, Utility.getTupleDesc(2), pageSize, true);
+        readAll(reader);
+
+        // rewriting a page with more data moves it to a larger extent
+        HeapPage page = (HeapPage) cf.readPage(new HeapPageId(cf.getId(), 4));
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[] { i * 7919, -i * 104729 }));
+        }
+        cf.writePage(page);
+        List<byte[]> expected = readAll(cf);
+        assertArrayEquals(page.getPageData(), expected.get(4));
+
+        cf.close();
+        reader.close();
+        assertTrue(map.exists());
+        assertSamePages(expected, new HeapFile(f, Utility.getTupleDesc(2), pageSize, true));
+        assertFalse(map.exists());
+        HeapFile rebuilt = new HeapFile(f, Utility.getTupleDesc(2), pageSize, true);
+        assertSamePages(expected, rebuilt);
+        rebuilt.close();
+        assertFalse(map.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileWriteTest.class);
+    }
+}
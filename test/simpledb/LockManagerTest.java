@@ -0,0 +1,229 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private LockManager lm;
+    private PageId p0;
+    private PageId p1;
+    private TransactionId t1;
+    private TransactionId t2;
+
+    @Before public void setUp() {
+        lm = new LockManager(200);
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+    }
+
+    /** Starts a thread that acquires a lock and counts down when it has it. */
+    private CountDownLatch acquireInBackground(final TransactionId tid, final PageId pid,
+            final boolean exclusive) {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(tid, pid, exclusive);
+                    acquired.countDown();
+                } catch (TransactionAbortedException e) {
+                    // leave the latch closed
+                }
+            }
+        };
+        t.start();
+        return acquired;
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        lm.acquire(t1, p0, false);
+        lm.acquire(t2, p0, false);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertTrue(lm.holdsLock(t2, p0));
+        assertFalse(lm.holdsLock(t1, p1));
+    }
+
+    @Test public void exclusiveWaitsForRelease() throws Exception {
+        lm = new LockManager(5000);
+        lm.acquire(t1, p0, false);
+        CountDownLatch acquired = acquireInBackground(t2, p0, true);
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        lm.releaseAll(t1);
+        assertTrue(acquired.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(lm.holdsExclusive(t2, p0));
+    }
+
+    @Test public void upgradeWhenOnlyHolder() throws Exception {
+        lm.acquire(t1, p0, false);
+        lm.acquire(t1, p0, true);
+        assertTrue(lm.holdsExclusive(t1, p0));
+
+        // the upgraded lock is released as a whole
+        lm.release(t1, p0);
+        lm.acquire(t2, p0, true);
+        assertTrue(lm.holdsExclusive(t2, p0));
+    }
+
+    /** Entries of free locks leave the lock table; a retired word is looked up again. */
+    @Test public void freeLocksLeaveTable() throws Exception {
+        lm.acquire(t1, p0, false);
+        lm.acquire(t2, p0, false);
+        lm.acquire(t1, p1, true);
+        assertEquals(2, lm.numLockEntries());
+        lm.release(t1, p0);
+        assertEquals(2, lm.numLockEntries());
+        lm.releaseAll(t1);
+        lm.releaseAll(t2);
+        assertEquals(0, lm.numLockEntries());
+
+        lm.acquire(t1, p0, true);
+        CountDownLatch acquired = acquireInBackground(t2, p0, false);
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        lm.releaseAll(t1);
+        assertTrue(acquired.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals(1, lm.numLockEntries());
+    }
+
+    @Test public void conflictingRequestTimesOut() throws Exception {
+        lm.acquire(t1, p0, true);
+        try {
+            lm.acquire(t2, p0, false);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * Two transactions each waiting for the other's page: the younger one
+     * is aborted and the older one gets its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        lm = new LockManager();
+        lm.acquire(t1, p0, true);
+        lm.acquire(t2, p1, true);
+        CountDownLatch olderAcquired = acquireInBackground(t1, p1, true);
+        assertFalse(olderAcquired.await(20, TimeUnit.MILLISECONDS));
+
+        try {
+            lm.acquire(t2, p0, false);
+            fail("expected the younger transaction to be aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(t2);
+        assertTrue(olderAcquired.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(lm.getLockWaitCount() >= 2);
+    }
+
+    /** Shared waiters do not form a cycle with other shared holders. */
+    @Test public void sharedWaitersAreNotDeadlocked() throws Exception {
+        lm = new LockManager();
+        lm.acquire(t1, p0, false);
+        lm.acquire(t2, p0, false);
+        lm.acquire(t2, p1, true);
+        CountDownLatch acquired = acquireInBackground(t1, p1, false);
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, lm.detectDeadlocks());
+        lm.releaseAll(t2);
+        assertTrue(acquired.await(1000, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Threads of one transaction asking for the same lock take it once, so
+     * releasing the transaction's locks leaves the page free.
+     */
+    @Test public void threadsOfOneTransactionShareLock() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        lm.acquire(t1, p0, false);
+                    } catch (Exception e) {
+                        // the holder check below fails
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(lm.holdsLock(t1, p0));
+        lm.releaseAll(t1);
+        lm.acquire(t2, p0, true);
+        assertTrue(lm.holdsExclusive(t2, p0));
+    }
+
+    /**
+     * A transaction with two threads blocked is still part of the
+     * waits-for graph after one of them gets its lock.
+     */
+    @Test public void deadlockThroughSecondThreadOfTransaction() throws Exception {
+        lm = new LockManager();
+        final PageId p2 = new HeapPageId(1, 2);
+        lm.acquire(t1, p0, true);
+        lm.acquire(t1, p1, true);
+        lm.acquire(t2, p2, true);
+        final CountDownLatch aborted = new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t2, p0, false);
+                } catch (TransactionAbortedException e) {
+                    aborted.countDown();
+                    lm.releaseAll(t2);
+                }
+            }
+        }.start();
+        CountDownLatch second = acquireInBackground(t2, p1, false);
+        assertFalse(second.await(20, TimeUnit.MILLISECONDS));
+        lm.release(t1, p1);
+        assertTrue(second.await(1000, TimeUnit.MILLISECONDS));
+
+        CountDownLatch olderAcquired = acquireInBackground(t1, p2, true);
+        assertTrue(aborted.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(olderAcquired.await(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void bufferPoolLocksUntilTransactionComplete() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        PageId pid = new HeapPageId(hf.getId(), 0);
+
+        bp.getPage(t1, pid, Permissions.READ_WRITE);
+        assertTrue(bp.holdsLock(t1, pid));
+        bp.transactionComplete(t1);
+        assertFalse(bp.holdsLock(t1, pid));
+
+        bp.getPage(t2, pid, Permissions.READ_ONLY);
+        bp.releasePage(t2, pid);
+        assertFalse(bp.holdsLock(t2, pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
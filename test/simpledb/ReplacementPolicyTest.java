@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+    private static final java.util.function.Predicate<PageId> ANY =
+            new java.util.function.Predicate<PageId>() {
+        public boolean test(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy lru = ReplacementPolicy.create(ReplacementPolicy.LRU, 3);
+        lru.onMiss(page(0));
+        lru.onMiss(page(1));
+        lru.onMiss(page(2));
+        lru.onHit(page(0));
+        assertEquals(page(1), lru.chooseVictim(ANY));
+        assertEquals(page(2), lru.chooseVictim(ANY));
+        assertEquals(page(0), lru.chooseVictim(ANY));
+        assertNull(lru.chooseVictim(ANY));
+    }
+
+    @Test public void clockGivesReferencedPagesSecondChance() {
+        ReplacementPolicy clock = ReplacementPolicy.create(ReplacementPolicy.CLOCK, 3);
+        clock.onMiss(page(0));
+        clock.onMiss(page(1));
+        clock.onMiss(page(2));
+        clock.onHit(page(0));
+        assertEquals(page(1), clock.chooseVictim(ANY));
+        clock.onRemove(page(2));
+        assertEquals(page(0), clock.chooseVictim(ANY));
+    }
+
+    @Test public void lruKEvictsPagesSeenOnceFirst() {
+        ReplacementPolicy lruK = ReplacementPolicy.create(ReplacementPolicy.LRU_K, 4);
+        lruK.onMiss(page(0));
+        lruK.onHit(page(0));
+        lruK.onMiss(page(1));
+        lruK.onMiss(page(2));
+        lruK.onHit(page(2));
+        // page 1 was accessed once: its second most recent access is infinitely old
+        assertEquals(page(1), lruK.chooseVictim(ANY));
+        assertEquals(page(0), lruK.chooseVictim(ANY));
+
+        // history survives a short absence from the pool
+        lruK.onMiss(page(0));
+        lruK.onMiss(page(3));
+        assertEquals(page(3), lruK.chooseVictim(ANY));
+    }
+
+    @Test public void victimsRespectPredicate() {
+        for (String name : new String[] { ReplacementPolicy.LRU, ReplacementPolicy.CLOCK,
+                ReplacementPolicy.LRU_K, ReplacementPolicy.TWO_Q }) {
+            ReplacementPolicy policy = ReplacementPolicy.create(name, 4);
+            policy.onMiss(page(0));
+            policy.onMiss(page(1));
+            PageId victim = policy.chooseVictim(new java.util.function.Predicate<PageId>() {
+                public boolean test(PageId pid) {
+                    return pid.pageNumber() == 1;
+                }
+            });
+            assertEquals(name, page(1), victim);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPolicyRejected() {
+        ReplacementPolicy.create("mru", 4);
+    }
+
+    /**
+     * A trace recorded by the buffer pool replays to the hit ratio the pool
+     * would see: here a loop over a working set that fits.
+     */
+    @Test public void recordedTraceReplays() throws Exception {
+        BufferPool bp = new BufferPool(8, false, new LruPolicy());
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        File trace = File.createTempFile("trace", ".dat");
+        trace.deleteOnExit();
+
+        bp.startTrace(trace);
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 4; i++) {
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            }
+        }
+        assertEquals(20, bp.stopTrace());
+
+        List<PageId> accesses = AccessTraceRecorder.readTrace(trace);
+        assertEquals(20, accesses.size());
+        assertEquals(new HeapPageId(hf.getId(), 1), accesses.get(5));
+        assertEquals(16.0 / 20, PolicyBenchmark.replay(accesses,
+                ReplacementPolicy.create(ReplacementPolicy.LRU, 8), 8), 1e-9);
+
+        // the same loop does not fit in 3 pages: LRU never hits
+        assertEquals(0.0, PolicyBenchmark.replay(accesses,
+                ReplacementPolicy.create(ReplacementPolicy.LRU, 3), 3), 1e-9);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TwoQueuePolicyTest {
+    private static final int CAPACITY = 8;
+    private static final java.util.function.Predicate<PageId> ANY =
+            new java.util.function.Predicate<PageId>() {
+        public boolean test(PageId pid) {
+            return true;
+        }
+    };
+
+    private TwoQueuePolicy policy;
+
+    @Before public void setUp() {
+        policy = new TwoQueuePolicy(CAPACITY);
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * Pages seen once are evicted in FIFO order.
+     */
+    @Test public void evictsColdPagesFirstInFirstOut() {
+        for (int i = 0; i < CAPACITY; i++) {
+            policy.onMiss(page(i));
+        }
+        assertEquals(page(0), policy.chooseVictim(ANY));
+        assertEquals(page(1), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * A page read again soon after eviction becomes hot and survives a
+     * stream of pages that are read only once.
+     */
+    @Test public void hotPageSurvivesScan() {
+        policy.onMiss(page(0));
+        for (int i = 1; i < CAPACITY; i++) {
+            policy.onMiss(page(i));
+        }
+        assertEquals(page(0), policy.chooseVictim(ANY));
+        // re-read while remembered in A1out: admitted to Am
+        policy.onMiss(page(0));
+
+        for (int i = 100; i < 100 + 10 * CAPACITY; i++) {
+            PageId victim = policy.chooseVictim(ANY);
+            assertFalse(page(0).equals(victim));
+            policy.onMiss(page(i));
+        }
+    }
+
+    /**
+     * Pages rejected by the predicate are never chosen.
+     */
+    @Test public void skipsPagesThatCannotBeEvicted() {
+        for (int i = 0; i < 3; i++) {
+            policy.onMiss(page(i));
+        }
+        PageId victim = policy.chooseVictim(new java.util.function.Predicate<PageId>() {
+            public boolean test(PageId pid) {
+                return pid.pageNumber() == 2;
+            }
+        });
+        assertEquals(page(2), victim);
+        policy.onRemove(page(0));
+        assertEquals(page(1), policy.chooseVictim(ANY));
+        assertNull(policy.chooseVictim(ANY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TwoQueuePolicyTest.class);
+    }
+}
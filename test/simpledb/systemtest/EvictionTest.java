@@ -0,0 +1,89 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Verifies that the buffer pool evicts pages so tables larger than the
+ * pool can be scanned.
+ */
+public class EvictionTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 8;
+
+    /** Scans a table five times the size of the buffer pool, twice. */
+    @Test public void testScanLargerThanPool()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(POOL_PAGES);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * POOL_PAGES * 5, null, tuples);
+        assertEquals(POOL_PAGES * 5, f.numPages());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Dirty pages must stay in the pool; eviction fails once all are dirty. */
+    @Test public void testDirtyPagesNotEvicted()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * (POOL_PAGES + 1), null, null);
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < POOL_PAGES; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+        try {
+            bp.getPage(tid, new HeapPageId(f.getId(), POOL_PAGES), Permissions.READ_ONLY);
+            fail("expected DbException when every page is dirty");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // once a page is clean again it can make room for the new one
+        Page first = bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        first.markDirty(false, null);
+        Page last = bp.getPage(tid, new HeapPageId(f.getId(), POOL_PAGES), Permissions.READ_ONLY);
+        assertEquals(POOL_PAGES, last.getId().pageNumber());
+    }
+
+    /** Pinned pages must stay in the pool even when they are clean. */
+    @Test public void testPinnedPagesNotEvicted()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * (POOL_PAGES + 1), null, null);
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < POOL_PAGES; i++) {
+            bp.pinPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY, null);
+        }
+        PageId extra = new HeapPageId(f.getId(), POOL_PAGES);
+        try {
+            bp.getPage(tid, extra, Permissions.READ_ONLY);
+            fail("expected DbException when every page is pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // unpinning one page makes room for the new one
+        bp.unpinPage(tid, new HeapPageId(f.getId(), 3));
+        bp.getPage(tid, extra, Permissions.READ_ONLY);
+        assertEquals(1, bp.getStats().evictions);
+
+        // completing the transaction drops the pins it still holds
+        bp.transactionComplete(tid);
+        TransactionId next = new TransactionId();
+        bp.getPage(next, new HeapPageId(f.getId(), 3), Permissions.READ_ONLY);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(EvictionTest.class);
+    }
+}
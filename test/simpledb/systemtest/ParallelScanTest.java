@@ -0,0 +1,135 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+    private ForkJoinPool pool;
+
+    @Before public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After public void tearDown() {
+        pool.shutdown();
+    }
+
+    private static List<ArrayList<Integer>> drain(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        List<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        return rows;
+    }
+
+    /** An unordered scan returns every tuple once, empty tables included. */
+    @Test public void unorderedScanReturnsAllTuples()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(100);
+        for (int rows : new int[] { 0, 1, 504 * 50 + 17 }) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+            TransactionId tid = new TransactionId();
+            SystemTestUtil.matchTuples(new ParallelSeqScan(tid, f.getId(), "t", false, pool), tuples);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** An ordered scan returns tuples in the order of a SeqScan, also after a rewind. */
+    @Test public void orderedScanMatchesSeqScan()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 120 + 3, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan seq = new SeqScan(tid, f.getId(), "t");
+        seq.open();
+        List<ArrayList<Integer>> expected = drain(seq);
+        seq.close();
+
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", true, pool);
+        scan.open();
+        assertEquals(expected, drain(scan));
+        scan.rewind();
+        assertEquals(expected, drain(scan));
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Closing a scan midway stops its tasks before it returns. */
+    @Test public void closeStopsReading()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 200, null, null);
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", false, pool);
+        scan.open();
+        assertTrue(scan.hasNext());
+        scan.next();
+        scan.close();
+        assertTrue(pool.awaitQuiescence(5, TimeUnit.SECONDS));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Workers lock pages under the scan's transaction. A deadlock through
+     * a blocked worker is found even after a sibling worker got its own
+     * lock, and the scan fails instead of waiting forever.
+     */
+    @Test(timeout = 20000) public void deadlockThroughWorkerIsDetected() throws Exception {
+        Database.resetBufferPool(100);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        final BufferPool bp = Database.getBufferPool();
+        final TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        PageId second = new HeapPageId(f.getId(), 8);
+        bp.getPage(writer, second, Permissions.READ_WRITE);
+        bp.getPage(writer, new HeapPageId(f.getId(), 16), Permissions.READ_WRITE);
+        final PageId held = new HeapPageId(other.getId(), 0);
+        bp.getPage(reader, held, Permissions.READ_WRITE);
+
+        // the workers of the second and third morsels block on the writer
+        ParallelSeqScan scan = new ParallelSeqScan(reader, f.getId(), "t", false, pool);
+        scan.open();
+        Thread.sleep(200);
+        bp.releasePage(writer, second);
+        Thread.sleep(100);
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    bp.getPage(writer, held, Permissions.READ_WRITE);
+                    bp.transactionComplete(writer);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        try {
+            drain(scan);
+            fail("expected the scan's transaction to be aborted");
+        } catch (TransactionAbortedException e) {
+            // the reader is the younger transaction
+        }
+        scan.close();
+        bp.transactionComplete(reader, false);
+        t.join();
+        assertFalse(bp.holdsLock(writer, held));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}